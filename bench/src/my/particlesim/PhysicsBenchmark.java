@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2014 Rowan Phipps
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package my.particlesim;
+
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * JMH benchmarks for the physics step and its parts.
+ *
+ * Every benchmark is one step or one pass, so the score is nanoseconds per
+ * step.  Run with -prof gc to get the bytes allocated per step from
+ * gc.alloc.rate.norm.  This is in the my.particlesim package so it can reach
+ * the package private kernels in Physics.
+ * @author rowan
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PhysicsBenchmark {
+    private static final int WIDTH = 1400;
+    private static final int HEIGHT = 800;
+
+    @Param({"100", "1000", "10000", "100000"})
+    public int count;
+
+    /** pair, direct, fused, tiled, barnes-hut, fmm or reference */
+    @Param({"pair", "barnes-hut"})
+    public String solver;
+
+    /** gravity, electro, both or none */
+    @Param({"both"})
+    public String forces;
+
+    @Param({"false"})
+    public boolean collision;
+
+    /** grid, sap or brute */
+    @Param({"grid", "sap"})
+    public String broadphase;
+
+    /** euler, verlet or leapfrog */
+    @Param({"euler"})
+    public String integrator;
+
+    /**
+     * How mass and charge are handed out.
+     * uniform is mass 1-300 and charge -100-100 like the sliders,
+     * equal is every particle mass 100 with no charge,
+     * plasma is light particles with charge of +/-100
+     */
+    @Param({"uniform"})
+    public String distribution;
+
+    /** Number of threads the parallel streams get to use */
+    @Param({"1", "4"})
+    public int threads;
+
+    private Simulation sim;
+    private ParticleStore store;
+    private ParticleStore start;
+    private ForkJoinPool pool;
+    private boolean gravity;
+    private boolean electro;
+    private double[] fx;
+    private double[] fy;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        gravity = forces.equals("gravity") || forces.equals("both");
+        electro = forces.equals("electro") || forces.equals("both");
+
+        start = new ParticleStore(count);
+        Random r = new Random(42);
+        for (int i = 0; i < count; i++) {
+            int mass;
+            int charge;
+            switch (distribution) {
+                case "uniform":
+                    mass = 1 + r.nextInt(300);
+                    charge = r.nextInt(201) - 100;
+                    break;
+                case "equal":
+                    mass = 100;
+                    charge = 0;
+                    break;
+                case "plasma":
+                    mass = 1 + r.nextInt(10);
+                    charge = r.nextBoolean() ? 100 : -100;
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown distribution: " + distribution);
+            }
+            start.add(mass, charge, r.nextDouble() * WIDTH, r.nextDouble() * HEIGHT);
+        }
+
+        pool = new ForkJoinPool(threads);
+        sim = new Simulation(WIDTH, HEIGHT);
+        sim.setForceSolver(this.makeSolver(solver));
+        sim.setIntegrator(makeIntegrator(integrator));
+        sim.setBroadphase(makeBroadphase(broadphase));
+        store = sim.getParticles();
+        fx = new double[count];
+        fy = new double[count];
+    }
+
+    /**
+     * Puts the particles back where they started so every iteration measures
+     * the same scene
+     */
+    @Setup(Level.Iteration)
+    public void reset() {
+        sim.clear();
+        for (int i = 0; i < count; i++) {
+            store.add(start, i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    private ForceSolver makeSolver(String name) {
+        switch (name) {
+            case "pair":
+                return new PairForceSolver();
+            case "direct":
+                return new DirectSolver();
+            case "fused":
+                return new FusedKernelSolver();
+            case "tiled":
+                return new TiledForceSolver(32, pool);
+            case "barnes-hut":
+                return new BarnesHutSolver();
+            case "fmm":
+                return new FastMultipoleSolver();
+            case "reference":
+                return null;
+            default:
+                throw new IllegalArgumentException("unknown solver: " + name);
+        }
+    }
+
+    private static Broadphase makeBroadphase(String name) {
+        switch (name) {
+            case "grid":
+                return new GridBroadphase();
+            case "sap":
+                return new SweepAndPruneBroadphase();
+            case "brute":
+                return new BruteForceBroadphase();
+            default:
+                throw new IllegalArgumentException("unknown broadphase: " + name);
+        }
+    }
+
+    private static Integrator makeIntegrator(String name) {
+        switch (name) {
+            case "euler":
+                return new EulerIntegrator();
+            case "verlet":
+                return new VelocityVerletIntegrator();
+            case "leapfrog":
+                return new LeapfrogIntegrator();
+            default:
+                throw new IllegalArgumentException("unknown integrator: " + name);
+        }
+    }
+
+    /**
+     * Runs a task in the pool so that any parallel streams inside of it use
+     * the pool's threads instead of the common pool
+     */
+    private void inPool(Runnable task) throws InterruptedException, ExecutionException {
+        pool.submit(task).get();
+    }
+
+    /**
+     * A whole step, the same as MyCanvas.updatePhysics
+     */
+    @Benchmark
+    public void step() throws InterruptedException, ExecutionException {
+        this.inPool(() -> sim.step(1, gravity, electro, collision));
+    }
+
+    /**
+     * Just the force pass of the selected solver
+     */
+    @Benchmark
+    public void forces(Blackhole bh) throws InterruptedException, ExecutionException {
+        ForceSolver s = sim.getForceSolver();
+        if (s == null) {
+            this.inPool(() -> {
+                for (int i = 0; i < store.size(); i++) {
+                    Physics.update(store, i, 1, gravity, electro, false);
+                }
+            });
+        }
+        else {
+            this.inPool(() -> s.computeForces(store, WIDTH, HEIGHT, fx, fy, gravity, electro, collision));
+        }
+        bh.consume(fx);
+    }
+
+    /**
+     * The broadphase and Physics.collide for every candidate pair
+     */
+    @Benchmark
+    public int collisions() {
+        int[] hits = new int[1];
+        sim.getBroadphase().findPairs(store, (i, j) -> {
+            if (Physics.collideIfTouching(store, i, j, 1)) {
+                hits[0]++;
+            }
+        });
+        return hits[0];
+    }
+
+    /**
+     * Physics.move and edgeCollide for every particle
+     */
+    @Benchmark
+    public void move() {
+        for (int i = 0; i < store.size(); i++) {
+            Physics.move(store, i, 1, WIDTH, HEIGHT);
+        }
+    }
+
+    /**
+     * Physics.doGravity and Physics.doElectro for a single pair, to watch
+     * the cost of the force law itself
+     */
+    @Benchmark
+    public void pairForce() {
+        double dx = store.x[0] - store.x[1];
+        double dy = store.y[0] - store.y[1];
+        double d = Math.sqrt(dx * dx + dy * dy);
+        Physics.doGravity(store, 0, 1, d, 1);
+        Physics.doElectro(store, 0, 1, d, 1);
+    }
+}
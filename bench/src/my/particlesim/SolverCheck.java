@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2014 Rowan Phipps
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package my.particlesim;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+
+/**
+ * Checks the force solvers against the brute force pair loop in
+ * DirectSolver and against the Physics.update path that Simulation takes
+ * when it has no solver, and checks that runs in deterministic mode do not
+ * depend on the number of threads.
+ *
+ * Every solver is run on every kind of scenario, and on a pile where each
+ * particle has a twin almost on top of it, with collisions off and on, and
+ * the relative error of its forces has to be under the limit given for it.
+ * A step of a simulation with each exact solver and collisions off has to
+ * change the velocities the same as a step with none, to within the same
+ * limit.  With collisions on Physics.update collides each pair in between
+ * working out the forces, so the two paths are not expected to agree.  Then
+ * a clustered scene is run in deterministic mode with every solver,
+ * bouncing, merging and with block steps, in pools of 1, 2 and 4 threads,
+ * and the state hash after every step has to be the same in all of them.
+ * This is a plain program rather than a benchmark so it can be run
+ * after any change to a solver without JMH.  It prints one line per check
+ * and exits with status 1 if any of them failed.
+ * @author rowan
+ */
+public final class SolverCheck {
+    private static final int WIDTH = 1400;
+    private static final int HEIGHT = 800;
+    private static final int STEPS = 20;
+    private static final int REFERENCE_COUNT = 2000;
+    private static final double THETA = 0.5;
+    private static final int[] THREADS = {1, 2, 4};
+    private static int failures = 0;
+
+    private SolverCheck() {
+    }
+
+    /**
+     * Runs the checks
+     * @param args The number of particles in each scenario, 5000 if not given
+     * @throws Exception If a run throws
+     */
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        for (Scenario.Kind kind : Scenario.Kind.values()) {
+            ParticleStore s = scene(kind, count);
+            String name = kind.name().toLowerCase();
+            checkForces("pair", new PairForceSolver(), name, s, 1e-12);
+            checkForces("fused", new FusedKernelSolver(), name, s, 1e-12);
+            checkForces("tiled", new TiledForceSolver(), name, s, 1e-12);
+            // a cell seen as one body is off by up to about theta^2 from its
+            // particles, and those errors mostly cancel over the whole tree
+            checkForces("barnes-hut", new BarnesHutSolver(THETA), name, s, THETA * THETA / 5);
+            checkForces("fmm", new FastMultipoleSolver(), name, s, 1e-5);
+
+            checkReference("direct", DirectSolver::new, kind, 1e-12);
+            checkReference("pair", PairForceSolver::new, kind, 1e-12);
+            checkReference("fused", FusedKernelSolver::new, kind, 1e-12);
+            checkReference("tiled", TiledForceSolver::new, kind, 1e-12);
+        }
+
+        // every particle has a twin almost on top of it, which none of the
+        // scenarios make, so the touching pairs are much stronger than the rest
+        ParticleStore pile = pile(count);
+        checkForces("pair", new PairForceSolver(), "pile", pile, 1e-12);
+        checkForces("fused", new FusedKernelSolver(), "pile", pile, 1e-12);
+        checkForces("tiled", new TiledForceSolver(), "pile", pile, 1e-12);
+        checkForces("fmm", new FastMultipoleSolver(), "pile", pile, 1e-5);
+
+        for (String setup : new String[] {"bounce", "merge", "block"}) {
+            checkHashes("reference", () -> null, setup);
+            checkHashes("pair", PairForceSolver::new, setup);
+            checkHashes("fused", FusedKernelSolver::new, setup);
+            checkHashes("tiled", TiledForceSolver::new, setup);
+            checkHashes("barnes-hut", BarnesHutSolver::new, setup);
+            checkHashes("fmm", FastMultipoleSolver::new, setup);
+        }
+
+        if (failures > 0) {
+            System.out.println(failures + " checks failed");
+            System.exit(1);
+        }
+        System.out.println("all checks passed");
+    }
+
+    private static ParticleStore scene(Scenario.Kind kind, int count) {
+        ParticleStore s = new ParticleStore(count);
+        Scenario scenario = new Scenario(kind);
+        scenario.setSeed(42);
+        scenario.generate(s, count, WIDTH, HEIGHT);
+        return s;
+    }
+
+    /**
+     * Makes a clustered scene where each particle has a twin a tiny distance
+     * away
+     */
+    private static ParticleStore pile(int count) {
+        ParticleStore s = scene(Scenario.Kind.CLUSTER, count / 2);
+        int n = s.size();
+        for (int i = 0; i < n; i++) {
+            s.add(s.getMass(i), s.getCharge(i), s.x[i] + 1e-9 * (1 + i % 7), s.y[i]);
+        }
+        return s;
+    }
+
+    /**
+     * Checks the forces from a solver against DirectSolver
+     */
+    private static void checkForces(String name, ForceSolver solver, String scene,
+            ParticleStore s, double limit) {
+        for (boolean collision : new boolean[] {false, true}) {
+            double error = ForceSolver.relativeError(new DirectSolver(), solver, s,
+                    WIDTH, HEIGHT, true, true, collision);
+            report(String.format("%-10s %-8s collisions %-5s error %.2e",
+                    name, scene, collision, error),
+                    error <= limit);
+        }
+    }
+
+    /**
+     * Checks that a step with a solver and collisions off changes the
+     * velocities the same as a step with no solver, which goes through
+     * Physics.update
+     */
+    private static void checkReference(String name, Supplier<ForceSolver> solver,
+            Scenario.Kind kind, double limit) {
+        double[] expected = kick(null, kind);
+        double[] actual = kick(solver.get(), kind);
+        double diff = 0;
+        double norm = 0;
+        for (int i = 0; i < expected.length; i++) {
+            diff += (actual[i] - expected[i]) * (actual[i] - expected[i]);
+            norm += expected[i] * expected[i];
+        }
+        double error = norm > 0 ? Math.sqrt(diff / norm) : Math.sqrt(diff);
+        report(String.format("%-10s %-8s no solver      error %.2e",
+                name, kind.name().toLowerCase(), error),
+                error <= limit);
+    }
+
+    /**
+     * Returns how much one step with collisions off changes the velocity of
+     * each particle, as vx then vy for each one
+     */
+    private static double[] kick(ForceSolver solver, Scenario.Kind kind) {
+        Simulation sim = new Simulation(WIDTH, HEIGHT);
+        sim.setForceSolver(solver);
+        ParticleStore s = sim.getParticles();
+        Scenario scenario = new Scenario(kind);
+        scenario.setSeed(42);
+        scenario.generate(s, REFERENCE_COUNT, WIDTH, HEIGHT);
+        int n = s.size();
+        double[] dv = new double[2 * n];
+        for (int i = 0; i < n; i++) {
+            dv[2 * i] = -s.vx[i];
+            dv[2 * i + 1] = -s.vy[i];
+        }
+        sim.step(1, true, true, false);
+        for (int i = 0; i < n; i++) {
+            dv[2 * i] += s.vx[i];
+            dv[2 * i + 1] += s.vy[i];
+        }
+        return dv;
+    }
+
+    /**
+     * Checks that a run in deterministic mode hashes the same after every
+     * step in pools of every size
+     */
+    private static void checkHashes(String name, Supplier<ForceSolver> solver, String setup)
+            throws InterruptedException, ExecutionException {
+        long[] expected = null;
+        boolean same = true;
+        for (int threads : THREADS) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                long[] hashes = pool.submit(() -> run(solver.get(), setup)).get();
+                if (expected == null) {
+                    expected = hashes;
+                }
+                same &= Arrays.equals(expected, hashes);
+            } finally {
+                pool.shutdown();
+            }
+        }
+        report(String.format("%-10s %-8s threads %s same hashes for %d steps",
+                name, setup, Arrays.toString(THREADS), STEPS), same);
+    }
+
+    private static long[] run(ForceSolver solver, String setup) {
+        Simulation sim = new Simulation(WIDTH, HEIGHT);
+        sim.setForceSolver(solver);
+        switch (setup) {
+            case "bounce":
+                break;
+            case "merge":
+                sim.setMerging(true);
+                break;
+            case "block":
+                sim.setIntegrator(new BlockStepIntegrator());
+                break;
+            default:
+                throw new IllegalArgumentException("unknown setup: " + setup);
+        }
+        Scenario scenario = new Scenario(Scenario.Kind.CLUSTER);
+        scenario.setSeed(42);
+        scenario.generate(sim.getParticles(), 2000, WIDTH, HEIGHT);
+        sim.setDeterministic(true);
+
+        long[] hashes = new long[STEPS];
+        for (int i = 0; i < STEPS; i++) {
+            sim.step(1, true, true, true);
+            hashes[i] = sim.getStateHash();
+        }
+        return hashes;
+    }
+
+    private static void report(String what, boolean ok) {
+        System.out.println((ok ? "ok    " : "FAIL  ") + what);
+        if (!ok) {
+            failures++;
+        }
+    }
+}
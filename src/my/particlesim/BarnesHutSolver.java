@@ -0,0 +1,414 @@
+/*
+ * Copyright (C) 2014 Rowan Phipps
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package my.particlesim;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Approximates gravity and electrostatic forces with a Barnes-Hut quadtree.
+ * The tree is rebuilt on every call over the bounds of the world.  A cell
+ * that is small compared to its distance from a particle, as decided by the
+ * opening angle theta, is treated as a single body.
+ *
+ * Each cell keeps its mass and its positive and negative charge separately,
+ * each with its own centre.  A neutral cell made of opposite charges still
+ * acts like a dipole instead of disappearing, which a signed sum would do.
+ * @author rowan
+ */
+public class BarnesHutSolver implements ForceSolver {
+    private static final int MAX_DEPTH = 32;
+    private static final int LEAF_SIZE = 8;
+    private static final int STACK_SIZE = 4 * MAX_DEPTH + 4;
+    private double theta;
+
+    // the particles for the current step
+    private int n = 0;
+    private double[] px;
+    private double[] py;
+    private short[] pMass;
+    private short[] pCharge;
+    private short[] pSize;
+    private int[] order = new int[0];   // particle indexes sorted by cell
+    private int[] scratch = new int[0];
+
+    // the tree, one entry per node
+    private int nodes = 0;
+    private int[] firstChild = new int[0];  // children are stored together, -1 for a leaf
+    private int[] childCount = new int[0];
+    private int[] start = new int[0];       // range of order covered by the node
+    private int[] end = new int[0];
+    private double[] cx = new double[0];    // geometric centre
+    private double[] cy = new double[0];
+    private double[] half = new double[0];  // half of the width of the cell
+    private double[] mass = new double[0];  // total mass and centre of mass
+    private double[] massX = new double[0];
+    private double[] massY = new double[0];
+    private double[] pos = new double[0];   // total positive charge and its centre
+    private double[] posX = new double[0];
+    private double[] posY = new double[0];
+    private double[] neg = new double[0];   // total negative charge and its centre
+    private double[] negX = new double[0];
+    private double[] negY = new double[0];
+
+    private final ThreadLocal<int[]> stacks = ThreadLocal.withInitial(() -> new int[STACK_SIZE]);
+
+    /**
+     * Creates a solver with an opening angle of 0.5
+     */
+    public BarnesHutSolver() {
+        this(0.5);
+    }
+
+    /**
+     * Creates a solver with the given opening angle
+     * @param theta The opening angle, 0 is exact and larger is faster
+     */
+    public BarnesHutSolver(double theta) {
+        this.setTheta(theta);
+    }
+
+    /**
+     * Sets the opening angle.
+     * A cell is treated as a single body when its width divided by its
+     * distance from the particle is less than theta.
+     * @param theta The opening angle, 0 is exact and larger is faster
+     */
+    public final void setTheta(double theta) {
+        if (theta < 0) {
+            throw new IllegalArgumentException("theta must not be negative: " + theta);
+        }
+        this.theta = theta;
+    }
+
+    /**
+     * Returns the opening angle
+     * @return theta
+     */
+    public double getTheta() {
+        return this.theta;
+    }
+
+    @Override
+    public boolean isDeterministic() {
+        return true;
+    }
+
+    @Override
+    public void computeForces(ParticleStore particles, int width, int height,
+            double[] fx, double[] fy,
+            boolean gravity, boolean electro, boolean collision) {
+        this.load(particles);
+        if (n == 0) {
+            return;
+        }
+        this.build(width, height);
+
+        double theta2 = theta * theta;
+        IntStream.range(0, n).parallel().forEach((i) -> {
+            this.forceOn(i, theta2, fx, fy, gravity, electro);
+        });
+    }
+
+    @Override
+    public void computeForces(ParticleStore particles, int width, int height,
+            int[] targets, int count, double[] fx, double[] fy,
+            boolean gravity, boolean electro, boolean collision) {
+        this.load(particles);
+        if (n == 0) {
+            return;
+        }
+        this.build(width, height);
+
+        double theta2 = theta * theta;
+        IntStream.range(0, count).parallel().forEach((t) -> {
+            this.forceOn(targets[t], theta2, fx, fy, gravity, electro);
+        });
+    }
+
+    /**
+     * Points the solver at the arrays of the store for this step
+     * @param particles The particles
+     */
+    private void load(ParticleStore particles) {
+        n = particles.size();
+        px = particles.x;
+        py = particles.y;
+        pMass = particles.mass;
+        pCharge = particles.charge;
+        pSize = particles.size;
+        if (order.length < n) {
+            order = new int[Math.max(n, order.length * 2)];
+            scratch = new int[order.length];
+        }
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+    }
+
+    /**
+     * Rebuilds the tree.  The root covers the world and is stretched to
+     * include any particles that are outside of it.
+     * @param width The current width of the world
+     * @param height The current height of the world
+     */
+    private void build(int width, int height) {
+        double minX = 0;
+        double minY = 0;
+        double maxX = width;
+        double maxY = height;
+        for (int i = 0; i < n; i++) {
+            minX = Math.min(minX, px[i]);
+            minY = Math.min(minY, py[i]);
+            maxX = Math.max(maxX, px[i]);
+            maxY = Math.max(maxY, py[i]);
+        }
+        double side = Math.max(Math.max(maxX - minX, maxY - minY), 1);
+
+        nodes = 0;
+        int root = this.newNode((minX + maxX) / 2, (minY + maxY) / 2, side / 2 * 1.0001);
+        this.buildNode(root, 0, n, 0);
+    }
+
+    /**
+     * Allocates a node, growing the node arrays if they are full
+     * @return The index of the new node
+     */
+    private int newNode(double x, double y, double h) {
+        if (nodes == cx.length) {
+            int cap = Math.max(64, nodes * 2);
+            firstChild = Arrays.copyOf(firstChild, cap);
+            childCount = Arrays.copyOf(childCount, cap);
+            start = Arrays.copyOf(start, cap);
+            end = Arrays.copyOf(end, cap);
+            cx = Arrays.copyOf(cx, cap);
+            cy = Arrays.copyOf(cy, cap);
+            half = Arrays.copyOf(half, cap);
+            mass = Arrays.copyOf(mass, cap);
+            massX = Arrays.copyOf(massX, cap);
+            massY = Arrays.copyOf(massY, cap);
+            pos = Arrays.copyOf(pos, cap);
+            posX = Arrays.copyOf(posX, cap);
+            posY = Arrays.copyOf(posY, cap);
+            neg = Arrays.copyOf(neg, cap);
+            negX = Arrays.copyOf(negX, cap);
+            negY = Arrays.copyOf(negY, cap);
+        }
+        int node = nodes++;
+        cx[node] = x;
+        cy[node] = y;
+        half[node] = h;
+        firstChild[node] = -1;
+        childCount[node] = 0;
+        return node;
+    }
+
+    /**
+     * Splits order[lo, hi) into the four quadrants of a node and then builds
+     * each of them.  Once the children are done their mass and charge are
+     * added up into this node.
+     */
+    private void buildNode(int node, int lo, int hi, int depth) {
+        start[node] = lo;
+        end[node] = hi;
+
+        if (hi - lo <= LEAF_SIZE || depth >= MAX_DEPTH) {
+            this.summarizeLeaf(node);
+            return;
+        }
+
+        // counting sort of the particles into quadrants
+        int[] counts = new int[4];
+        double x = cx[node];
+        double y = cy[node];
+        for (int k = lo; k < hi; k++) {
+            int i = order[k];
+            counts[quadrant(px[i] >= x, py[i] >= y)]++;
+        }
+        int[] offsets = new int[4];
+        offsets[0] = lo;
+        for (int q = 1; q < 4; q++) {
+            offsets[q] = offsets[q - 1] + counts[q - 1];
+        }
+        int[] fill = offsets.clone();
+        for (int k = lo; k < hi; k++) {
+            int i = order[k];
+            scratch[fill[quadrant(px[i] >= x, py[i] >= y)]++] = i;
+        }
+        System.arraycopy(scratch, lo, order, lo, hi - lo);
+
+        // the children of a node have to be next to each other, so make all of
+        // them before building any of them
+        double h = half[node] / 2;
+        int first = nodes;
+        int made = 0;
+        for (int q = 0; q < 4; q++) {
+            if (counts[q] > 0) {
+                this.newNode((q & 1) == 0 ? x - h : x + h, (q & 2) == 0 ? y - h : y + h, h);
+                made++;
+            }
+        }
+        firstChild[node] = first;
+        childCount[node] = made;
+        int c = first;
+        for (int q = 0; q < 4; q++) {
+            if (counts[q] > 0) {
+                this.buildNode(c++, offsets[q], offsets[q] + counts[q], depth + 1);
+            }
+        }
+
+        double m = 0, mx = 0, my = 0;
+        double qp = 0, qpx = 0, qpy = 0;
+        double qn = 0, qnx = 0, qny = 0;
+        for (c = first; c < first + made; c++) {
+            m += mass[c];
+            mx += mass[c] * massX[c];
+            my += mass[c] * massY[c];
+            qp += pos[c];
+            qpx += pos[c] * posX[c];
+            qpy += pos[c] * posY[c];
+            qn += neg[c];
+            qnx += neg[c] * negX[c];
+            qny += neg[c] * negY[c];
+        }
+        this.setSummary(node, m, mx, my, qp, qpx, qpy, qn, qnx, qny);
+    }
+
+    private static int quadrant(boolean right, boolean below) {
+        return (right ? 1 : 0) | (below ? 2 : 0);
+    }
+
+    /**
+     * Adds up the mass and charge of the particles in a leaf
+     */
+    private void summarizeLeaf(int node) {
+        double m = 0, mx = 0, my = 0;
+        double qp = 0, qpx = 0, qpy = 0;
+        double qn = 0, qnx = 0, qny = 0;
+        for (int k = start[node]; k < end[node]; k++) {
+            int i = order[k];
+            m += pMass[i];
+            mx += pMass[i] * px[i];
+            my += pMass[i] * py[i];
+            if (pCharge[i] > 0) {
+                qp += pCharge[i];
+                qpx += pCharge[i] * px[i];
+                qpy += pCharge[i] * py[i];
+            }
+            else if (pCharge[i] < 0) {
+                qn += pCharge[i];
+                qnx += pCharge[i] * px[i];
+                qny += pCharge[i] * py[i];
+            }
+        }
+        this.setSummary(node, m, mx, my, qp, qpx, qpy, qn, qnx, qny);
+    }
+
+    /**
+     * Stores the totals for a node, turning the weighted sums of position into
+     * centres.  Empty totals put their centre in the middle of the cell.
+     */
+    private void setSummary(int node, double m, double mx, double my,
+            double qp, double qpx, double qpy, double qn, double qnx, double qny) {
+        mass[node] = m;
+        massX[node] = m != 0 ? mx / m : cx[node];
+        massY[node] = m != 0 ? my / m : cy[node];
+        pos[node] = qp;
+        posX[node] = qp != 0 ? qpx / qp : cx[node];
+        posY[node] = qp != 0 ? qpy / qp : cy[node];
+        neg[node] = qn;
+        negX[node] = qn != 0 ? qnx / qn : cx[node];
+        negY[node] = qn != 0 ? qny / qn : cy[node];
+    }
+
+    /**
+     * Walks the tree to find the force on one particle
+     */
+    private void forceOn(int i, double theta2, double[] fx, double[] fy,
+            boolean gravity, boolean electro) {
+        double x = px[i];
+        double y = py[i];
+        double gm = gravity ? -Physics.g * pMass[i] : 0;
+        double kq = electro ? Physics.k * pCharge[i] : 0;
+        double sumX = 0;
+        double sumY = 0;
+
+        int[] stack = stacks.get();
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            int node = stack[--top];
+
+            if (firstChild[node] < 0) {
+                // leaf, so do every particle in it exactly
+                for (int k = start[node]; k < end[node]; k++) {
+                    int j = order[k];
+                    if (j == i) {
+                        continue;
+                    }
+                    double dx = x - px[j];
+                    double dy = y - py[j];
+                    double d2 = dx * dx + dy * dy;
+                    if (d2 == 0 || Math.sqrt(d2) <= (pSize[i] + pSize[j]) / 2) {
+                        continue;
+                    }
+                    double coef = (gm * pMass[j] + kq * pCharge[j]) / d2;
+                    sumX += dx * coef;
+                    sumY += dy * coef;
+                }
+                continue;
+            }
+
+            double ox = x - cx[node];
+            double oy = y - cy[node];
+            double w = 2 * half[node];
+            boolean outside = Math.abs(ox) > half[node] || Math.abs(oy) > half[node];
+            if (outside && w * w < theta2 * (ox * ox + oy * oy)) {
+                if (gm != 0) {
+                    double dx = x - massX[node];
+                    double dy = y - massY[node];
+                    double coef = gm * mass[node] / (dx * dx + dy * dy);
+                    sumX += dx * coef;
+                    sumY += dy * coef;
+                }
+                if (kq != 0 && pos[node] != 0) {
+                    double dx = x - posX[node];
+                    double dy = y - posY[node];
+                    double coef = kq * pos[node] / (dx * dx + dy * dy);
+                    sumX += dx * coef;
+                    sumY += dy * coef;
+                }
+                if (kq != 0 && neg[node] != 0) {
+                    double dx = x - negX[node];
+                    double dy = y - negY[node];
+                    double coef = kq * neg[node] / (dx * dx + dy * dy);
+                    sumX += dx * coef;
+                    sumY += dy * coef;
+                }
+            }
+            else {
+                int first = firstChild[node];
+                for (int c = first; c < first + childCount[node]; c++) {
+                    stack[top++] = c;
+                }
+            }
+        }
+        fx[i] = sumX;
+        fy[i] = sumY;
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2014 Rowan Phipps
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package my.particlesim;
+
+import java.util.Arrays;
+
+/**
+ * Lets every particle take steps of its own size.
+ *
+ * Each particle is put on a level, and a particle on level l takes steps of
+ * T / 2^l, so the step is always T split in half some number of times.  All
+ * of the steps on a level start and end together and line up with the steps
+ * of every level above, so at any moment the particles whose step ends are a
+ * whole set of levels.  Only they have their forces worked out, through
+ * Integrator.Forces, and a quiet particle on level 0 has its forces worked
+ * out once per step however busy the rest of the world is.  In between every
+ * particle drifts, which is cheap.
+ *
+ * Each step of a particle is a Velocity Verlet step: half a kick with the
+ * force from the end of its last step, the drift, and half a kick with the
+ * force at the end.  The level of a particle is chosen at the end of each of
+ * its steps from how hard it is being pushed and how close its nearest
+ * neighbour is, so a particle needs steps small enough that it neither moves
+ * nor changes speed by much compared to the gap around it.  A particle can
+ * move to a smaller step whenever it likes but only moves up one level, and
+ * only when the bigger step would line up with the others on that level.
+ *
+ * Collisions are handled once at the end of the whole step.
+ * @author rowan
+ */
+public class BlockStepIntegrator implements Integrator {
+    private static final int MAX_LEVEL = 20;
+    private int maxLevel = 8;
+    private double eta = 0.1;
+    private double[] fx = new double[0];
+    private double[] fy = new double[0];
+    private byte[] level = new byte[0];
+    private int[] active = new int[0];
+    private final int[] perLevel = new int[MAX_LEVEL + 1];
+    private int cached = -1;    // number of particles the forces are for
+    private long evaluations = 0;
+
+    // a grid for finding the nearest neighbour of each particle
+    private double cell;
+    private int cellsX;
+    private int cellsY;
+    private int[] cellStart = new int[0];
+    private int[] sorted = new int[0];
+
+    /**
+     * Sets the deepest level, so the smallest step is T / 2^maxLevel
+     * @param maxLevel The deepest level, from 0 to 20
+     */
+    public void setMaxLevel(int maxLevel) {
+        if (maxLevel < 0 || maxLevel > MAX_LEVEL) {
+            throw new IllegalArgumentException("maxLevel must be from 0 to " + MAX_LEVEL + ": " + maxLevel);
+        }
+        this.maxLevel = maxLevel;
+        this.reset();
+    }
+
+    public int getMaxLevel() {
+        return this.maxLevel;
+    }
+
+    /**
+     * Sets how careful the step size is.  Smaller values give smaller steps.
+     * @param eta The accuracy parameter
+     */
+    public void setEta(double eta) {
+        if (!(eta > 0)) {
+            throw new IllegalArgumentException("eta must be positive: " + eta);
+        }
+        this.eta = eta;
+    }
+
+    public double getEta() {
+        return this.eta;
+    }
+
+    /**
+     * Returns how many times the force on a particle has been worked out,
+     * to see how much work the levels are saving
+     * @return The number of force evaluations
+     */
+    public long getForceEvaluations() {
+        return this.evaluations;
+    }
+
+    /**
+     * Returns the number of particles on a level after the last step
+     * @param l The level
+     * @return The number of particles
+     */
+    public int getLevelCount(int l) {
+        return this.perLevel[l];
+    }
+
+    @Override
+    public void step(ParticleStore s, double T, int width, int height,
+            Forces forces, Drift drift, Runnable collisions) {
+        int n = s.size();
+        if (fx.length < n) {
+            int cap = Math.max(n, fx.length * 2);
+            fx = new double[cap];
+            fy = new double[cap];
+            level = new byte[cap];
+            active = new int[cap];
+            cached = -1;
+        }
+        int ticks = 1 << maxLevel;
+        double unit = T / ticks;
+        if (cached != n) {
+            forces.compute(fx, fy);
+            evaluations += n;
+            this.buildGrid(s, width, height);
+            Arrays.fill(perLevel, 0);
+            for (int i = 0; i < n; i++) {
+                level[i] = (byte) this.wantedLevel(s, i, T);
+                perLevel[level[i]]++;
+            }
+            cached = n;
+        }
+
+        // every step starts at tick 0
+        for (int i = 0; i < n; i++) {
+            Physics.applyForce(s, i, fx[i], fy[i], (ticks >> level[i]) * unit / 2);
+        }
+
+        int t = 0;
+        while (t < ticks) {
+            int deepest = maxLevel;
+            while (perLevel[deepest] == 0) {
+                deepest--;
+            }
+            int dt = ticks >> deepest;
+            drift.drift(dt * unit);
+            t += dt;
+
+            int count = 0;
+            for (int i = 0; i < n; i++) {
+                if ((t & ((ticks >> level[i]) - 1)) == 0) {
+                    active[count++] = i;
+                }
+            }
+            forces.compute(active, count, fx, fy);
+            evaluations += count;
+            this.buildGrid(s, width, height);
+            for (int a = 0; a < count; a++) {
+                int i = active[a];
+                int l = level[i];
+                Physics.applyForce(s, i, fx[i], fy[i], (ticks >> l) * unit / 2);
+
+                int wanted = this.wantedLevel(s, i, T);
+                if (wanted < l) {
+                    // only a step that lines up with the level above may grow
+                    wanted = (t & ((ticks >> (l - 1)) - 1)) == 0 ? l - 1 : l;
+                }
+                perLevel[l]--;
+                perLevel[wanted]++;
+                level[i] = (byte) wanted;
+                if (t < ticks) {
+                    Physics.applyForce(s, i, fx[i], fy[i], (ticks >> wanted) * unit / 2);
+                }
+            }
+        }
+
+        if (collisions != null) {
+            collisions.run();
+        }
+    }
+
+    /**
+     * Works out the level a particle should be on from the force on it and
+     * the distance to its nearest neighbour
+     */
+    private int wantedLevel(ParticleStore s, int i, double T) {
+        double r = Math.max(this.nearest(s, i), Math.max(s.size[i] / 2.0, 0.5));
+        double a = Math.sqrt(fx[i] * fx[i] + fy[i] * fy[i]) / s.mass[i];
+        double v = Math.sqrt(s.vx[i] * s.vx[i] + s.vy[i] * s.vy[i]);
+        double dt = eta * Math.min(Math.sqrt(r / a), r / v);
+        if (!(dt < T)) {
+            return 0;   // also catches a and v of 0
+        }
+        int l = (int) Math.ceil(StrictMath.log(T / dt) / StrictMath.log(2));
+        return Math.min(l, maxLevel);
+    }
+
+    @Override
+    public void reset() {
+        cached = -1;
+    }
+
+    /**
+     * Sorts the particles into a grid of cells about as big as the average
+     * gap between them
+     */
+    private void buildGrid(ParticleStore s, int width, int height) {
+        int n = s.size();
+        int maxSize = 1;
+        for (int i = 0; i < n; i++) {
+            maxSize = Math.max(maxSize, s.size[i]);
+        }
+        cell = Math.max(maxSize, Math.sqrt((double) Math.max(width, 1) * Math.max(height, 1) / Math.max(n, 1)));
+        cellsX = Math.max(1, (int) Math.ceil(width / cell));
+        cellsY = Math.max(1, (int) Math.ceil(height / cell));
+        int cells = cellsX * cellsY;
+        if (cellStart.length < cells + 1) {
+            cellStart = new int[cells + 1];
+        }
+        if (sorted.length < n) {
+            sorted = new int[fx.length];
+        }
+        Arrays.fill(cellStart, 0, cells + 1, 0);
+        for (int i = 0; i < n; i++) {
+            cellStart[this.cellOf(s, i) + 1]++;
+        }
+        for (int c = 0; c < cells; c++) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        int[] fill = Arrays.copyOf(cellStart, cells);
+        for (int i = 0; i < n; i++) {
+            sorted[fill[this.cellOf(s, i)]++] = i;
+        }
+    }
+
+    private int cellOf(ParticleStore s, int i) {
+        int cxi = Math.min(Math.max((int) (s.x[i] / cell), 0), cellsX - 1);
+        int cyi = Math.min(Math.max((int) (s.y[i] / cell), 0), cellsY - 1);
+        return cyi * cellsX + cxi;
+    }
+
+    /**
+     * Finds the distance to the nearest other particle, looking no further
+     * than the cells next to the one the particle is in
+     * @return The distance, or the size of a cell if there is nothing closer
+     */
+    private double nearest(ParticleStore s, int i) {
+        int cxi = Math.min(Math.max((int) (s.x[i] / cell), 0), cellsX - 1);
+        int cyi = Math.min(Math.max((int) (s.y[i] / cell), 0), cellsY - 1);
+        double best = cell * cell;
+        for (int gy = Math.max(cyi - 1, 0); gy <= Math.min(cyi + 1, cellsY - 1); gy++) {
+            for (int gx = Math.max(cxi - 1, 0); gx <= Math.min(cxi + 1, cellsX - 1); gx++) {
+                int c = gy * cellsX + gx;
+                for (int m = cellStart[c]; m < cellStart[c + 1]; m++) {
+                    int j = sorted[m];
+                    if (j != i) {
+                        double dx = s.x[i] - s.x[j];
+                        double dy = s.y[i] - s.y[j];
+                        best = Math.min(best, dx * dx + dy * dy);
+                    }
+                }
+            }
+        }
+        return Math.sqrt(best);
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2014 Rowan Phipps
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package my.particlesim;
+
+/**
+ * Finds the pairs of particles that might be touching so that the exact
+ * collision check only has to be done for those pairs.
+ * @author rowan
+ */
+public interface Broadphase {
+
+    /**
+     * Receives the candidate pairs found by a broadphase
+     */
+    @FunctionalInterface
+    interface PairConsumer {
+        /**
+         * Called once for each candidate pair
+         * @param i The index of the first particle
+         * @param j The index of the second particle, always greater than i
+         */
+        void accept(int i, int j);
+    }
+
+    /**
+     * Finds every pair of particles that might be touching.
+     * Every pair that is touching must be reported exactly once.  Pairs that
+     * are not touching may be reported as well.  Pairs are reported in order
+     * of their first index.
+     * @param particles The particles
+     * @param pairs Receives the candidate pairs
+     */
+    void findPairs(ParticleStore particles, PairConsumer pairs);
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2014 Rowan Phipps
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package my.particlesim;
+
+/**
+ * Reports every pair of particles.
+ * This is what Physics.update does and is kept to check the other
+ * broadphases against.
+ * @author rowan
+ */
+public class BruteForceBroadphase implements Broadphase {
+
+    @Override
+    public void findPairs(ParticleStore particles, PairConsumer pairs) {
+        int n = particles.size();
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                pairs.accept(i, j);
+            }
+        }
+    }
+}
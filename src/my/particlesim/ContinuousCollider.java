@@ -0,0 +1,459 @@
+/*
+ * Copyright (C) 2014 Rowan Phipps
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package my.particlesim;
+
+import java.util.Arrays;
+
+/**
+ * Moves particles and collides them at the moment they touch instead of
+ * checking for overlaps after they have moved, so fast particles cannot pass
+ * through each other or through the walls however big the step is.
+ *
+ * Every particle moves in a straight line during a drift.  The pairs that
+ * could meet are found first by sweeping over the discs each particle could
+ * reach, sorted by their left edge.  The time at which each of those pairs
+ * would touch, and each particle would hit a wall, is worked out exactly and
+ * put in a queue.  The earliest event is taken off the queue, the particles
+ * in it are moved up to that time and bounced, and new events are worked out
+ * for them with the pairs found at the start.  Events for a particle that
+ * has bounced since they were queued are thrown away when they come up.
+ *
+ * A particle that speeds up in a collision can reach further than its disc,
+ * and anything it hits outside of its original neighbours is missed until
+ * the next drift.  There is also a limit on the number of events per drift
+ * so that a tight cluster that keeps bumping cannot stall a step.
+ * @author rowan
+ */
+public class ContinuousCollider {
+    private static final int WALL_X = -1;
+    private static final int WALL_Y = -2;
+    private double restitution = Physics.c;
+    private int maxEventsPerParticle = 16;
+    private long collisions = 0;
+    private long wallHits = 0;
+    private boolean walls = true;   // for the drift in progress
+
+    private double[] time = new double[0];  // time up to which each particle has moved
+    private int[] version = new int[0];     // bumped every time a particle bounces
+    private double[] key = new double[0];
+    private double[] reach = new double[0];
+    private int[] order = new int[0];
+    private int[] tmp = new int[0];
+    private int[] nearStart = new int[0];   // neighbours of each particle
+    private int[] near = new int[0];
+    private int[] pairI = new int[0];
+    private int[] pairJ = new int[0];
+    private int pairs = 0;
+
+    // a binary heap of events ordered by time
+    private int events = 0;
+    private double[] evTime = new double[16];
+    private int[] evI = new int[16];
+    private int[] evJ = new int[16];    // other particle, or WALL_X or WALL_Y
+    private int[] evVersionI = new int[16];
+    private int[] evVersionJ = new int[16];
+
+    /**
+     * Sets how much of their closing speed two particles keep when they
+     * bounce off each other, from 0 for none to 1 for all of it
+     * @param restitution The coefficient of restitution
+     */
+    public void setRestitution(double restitution) {
+        if (restitution < 0 || restitution > 1) {
+            throw new IllegalArgumentException("restitution must be from 0 to 1: " + restitution);
+        }
+        this.restitution = restitution;
+    }
+
+    public double getRestitution() {
+        return this.restitution;
+    }
+
+    /**
+     * Sets the most events handled in one drift, as a number per particle
+     * @param max The number of events per particle
+     */
+    public void setMaxEventsPerParticle(int max) {
+        if (max < 1) {
+            throw new IllegalArgumentException("max must be positive: " + max);
+        }
+        this.maxEventsPerParticle = max;
+    }
+
+    /**
+     * Returns the number of times two particles have bounced off each other
+     * @return The number of collisions
+     */
+    public long getCollisions() {
+        return this.collisions;
+    }
+
+    /**
+     * Returns the number of times a particle has bounced off a wall
+     * @return The number of wall hits
+     */
+    public long getWallHits() {
+        return this.wallHits;
+    }
+
+    /**
+     * Moves every particle for a length of time, bouncing them off each other
+     * and the walls on the way
+     * @param s The particles
+     * @param dt How long to move for
+     * @param width The width of the world
+     * @param height The height of the world
+     */
+    public void drift(ParticleStore s, double dt, int width, int height) {
+        this.drift(s, dt, width, height, true);
+    }
+
+    /**
+     * Moves every particle for a length of time, bouncing them off each other
+     * and, if there are walls, off the edges of the world
+     * @param s The particles
+     * @param dt How long to move for
+     * @param width The width of the world
+     * @param height The height of the world
+     * @param walls False if particles can leave the world
+     */
+    public void drift(ParticleStore s, double dt, int width, int height, boolean walls) {
+        this.walls = walls;
+        int n = s.size();
+        if (time.length < n) {
+            int cap = Math.max(n, time.length * 2);
+            time = new double[cap];
+            version = new int[cap];
+            key = new double[cap];
+            reach = new double[cap];
+            order = new int[cap];
+            tmp = new int[cap];
+            nearStart = new int[cap + 1];
+        }
+        for (int i = 0; i < n; i++) {
+            s.x[i] += s.dx[i];
+            s.y[i] += s.dy[i];
+            s.dx[i] = 0;
+            s.dy[i] = 0;
+            time[i] = 0;
+            version[i] = 0;
+        }
+
+        this.findNeighbours(s, dt, n);
+        events = 0;
+        for (int p = 0; p < pairs; p++) {
+            this.predict(s, pairI[p], pairJ[p], dt);
+        }
+        for (int i = 0; i < n; i++) {
+            this.predictWall(s, i, dt, width, height);
+        }
+
+        long limit = (long) maxEventsPerParticle * n;
+        for (long handled = 0; events > 0 && handled < limit; ) {
+            double t = evTime[0];
+            int i = evI[0];
+            int j = evJ[0];
+            boolean stale = evVersionI[0] != version[i] || (j >= 0 && evVersionJ[0] != version[j]);
+            this.pop();
+            if (stale) {
+                continue;
+            }
+            handled++;
+            advance(s, i, t);
+            if (j >= 0) {
+                advance(s, j, t);
+                this.bounce(s, i, j);
+                version[j]++;
+            }
+            else {
+                this.bounceWall(s, i, j, width, height);
+            }
+            version[i]++;
+            this.repredict(s, i, dt, width, height);
+            if (j >= 0) {
+                this.repredict(s, j, dt, width, height);
+            }
+        }
+
+        for (int i = 0; i < n; i++) {
+            advance(s, i, dt);
+            // catches particles that were already outside a wall
+            if (walls) {
+                Physics.edgeCollide(s, i, width, height);
+            }
+        }
+    }
+
+    private void advance(ParticleStore s, int i, double t) {
+        double d = t - time[i];
+        s.x[i] += s.vx[i] * d;
+        s.y[i] += s.vy[i] * d;
+        time[i] = t;
+    }
+
+    /**
+     * Finds every pair of particles whose reachable discs overlap by sorting
+     * the discs by their left edge and sweeping along x
+     */
+    private void findNeighbours(ParticleStore s, double dt, int n) {
+        for (int i = 0; i < n; i++) {
+            double v = Math.sqrt(s.vx[i] * s.vx[i] + s.vy[i] * s.vy[i]);
+            reach[i] = v * dt + s.size[i] / 2.0;
+            key[i] = s.x[i] - reach[i];
+            order[i] = i;
+        }
+        sortByKey(order, key, n, tmp);
+
+        pairs = 0;
+        for (int a = 0; a < n; a++) {
+            int i = order[a];
+            double right = s.x[i] + reach[i];
+            for (int b = a + 1; b < n && key[order[b]] <= right; b++) {
+                int j = order[b];
+                double r = reach[i] + reach[j];
+                double dx = s.x[i] - s.x[j];
+                double dy = s.y[i] - s.y[j];
+                if (dx * dx + dy * dy <= r * r) {
+                    if (pairs == pairI.length) {
+                        pairI = Arrays.copyOf(pairI, Math.max(16, pairs * 2));
+                        pairJ = Arrays.copyOf(pairJ, pairI.length);
+                    }
+                    pairI[pairs] = i;
+                    pairJ[pairs] = j;
+                    pairs++;
+                }
+            }
+        }
+
+        Arrays.fill(nearStart, 0, n + 1, 0);
+        for (int p = 0; p < pairs; p++) {
+            nearStart[pairI[p] + 1]++;
+            nearStart[pairJ[p] + 1]++;
+        }
+        for (int i = 0; i < n; i++) {
+            nearStart[i + 1] += nearStart[i];
+        }
+        if (near.length < 2 * pairs) {
+            near = new int[Math.max(2 * pairs, near.length * 2)];
+        }
+        int[] fill = Arrays.copyOf(nearStart, n);
+        for (int p = 0; p < pairs; p++) {
+            near[fill[pairI[p]]++] = pairJ[p];
+            near[fill[pairJ[p]]++] = pairI[p];
+        }
+    }
+
+    /**
+     * Sorts indexes by a key with a bottom up merge sort.  tmp must be at
+     * least n long.
+     */
+    static void sortByKey(int[] idx, double[] key, int n, int[] tmp) {
+        int[] from = idx;
+        int[] to = tmp;
+        for (int width = 1; width < n; width *= 2) {
+            for (int lo = 0; lo < n; lo += 2 * width) {
+                int mid = Math.min(lo + width, n);
+                int hi = Math.min(lo + 2 * width, n);
+                int a = lo;
+                int b = mid;
+                for (int k = lo; k < hi; k++) {
+                    if (a < mid && (b >= hi || key[from[a]] <= key[from[b]])) {
+                        to[k] = from[a++];
+                    }
+                    else {
+                        to[k] = from[b++];
+                    }
+                }
+            }
+            int[] t = from;
+            from = to;
+            to = t;
+        }
+        if (from != idx) {
+            System.arraycopy(from, 0, idx, 0, n);
+        }
+    }
+
+    /**
+     * Queues new events for a particle after it has bounced
+     */
+    private void repredict(ParticleStore s, int i, double dt, int width, int height) {
+        this.predictWall(s, i, dt, width, height);
+        for (int m = nearStart[i]; m < nearStart[i + 1]; m++) {
+            this.predict(s, i, near[m], dt);
+        }
+    }
+
+    /**
+     * Queues the time two particles will touch, if they touch before the end
+     * of the drift.  Particles that are already overlapping and still moving
+     * together touch straight away.
+     */
+    private void predict(ParticleStore s, int i, int j, double dt) {
+        double t0 = Math.max(time[i], time[j]);
+        double dx = (s.x[i] + s.vx[i] * (t0 - time[i])) - (s.x[j] + s.vx[j] * (t0 - time[j]));
+        double dy = (s.y[i] + s.vy[i] * (t0 - time[i])) - (s.y[j] + s.vy[j] * (t0 - time[j]));
+        double dvx = s.vx[i] - s.vx[j];
+        double dvy = s.vy[i] - s.vy[j];
+        double b = dx * dvx + dy * dvy;
+        if (b >= 0) {
+            return;     // moving apart
+        }
+        double r = (s.size[i] + s.size[j]) / 2;
+        double c = dx * dx + dy * dy - r * r;
+        double a = dvx * dvx + dvy * dvy;
+        double toi;
+        if (c <= 0) {
+            toi = 0;
+        }
+        else {
+            double disc = b * b - a * c;
+            if (disc < 0) {
+                return;     // they miss
+            }
+            toi = c / (-b + Math.sqrt(disc));
+        }
+        if (t0 + toi <= dt) {
+            this.push(t0 + toi, i, j);
+        }
+    }
+
+    /**
+     * Queues the time a particle will hit a wall, if it does before the end
+     * of the drift
+     */
+    private void predictWall(ParticleStore s, int i, double dt, int width, int height) {
+        if (!walls) {
+            return;
+        }
+        int r = s.size[i] / 2;
+        double tx = wallTime(s.x[i], s.vx[i], r, width);
+        double ty = wallTime(s.y[i], s.vy[i], r, height);
+        double t = Math.min(tx, ty);
+        if (time[i] + t <= dt) {
+            this.push(time[i] + t, i, tx <= ty ? WALL_X : WALL_Y);
+        }
+    }
+
+    private static double wallTime(double p, double v, int r, int size) {
+        if (v < 0) {
+            return Math.max(0, (r - p) / v);
+        }
+        if (v > 0) {
+            return Math.max(0, (size - r - p) / v);
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Exchanges momentum along the line between two touching particles
+     */
+    private void bounce(ParticleStore s, int i, int j) {
+        double nx = s.x[i] - s.x[j];
+        double ny = s.y[i] - s.y[j];
+        double d = Math.sqrt(nx * nx + ny * ny);
+        if (d == 0) {
+            return;
+        }
+        nx /= d;
+        ny /= d;
+        double closing = (s.vx[i] - s.vx[j]) * nx + (s.vy[i] - s.vy[j]) * ny;
+        if (closing >= 0) {
+            return;
+        }
+        double impulse = -(1 + restitution) * closing / (1.0 / s.mass[i] + 1.0 / s.mass[j]);
+        s.vx[i] += impulse * nx / s.mass[i];
+        s.vy[i] += impulse * ny / s.mass[i];
+        s.vx[j] -= impulse * nx / s.mass[j];
+        s.vy[j] -= impulse * ny / s.mass[j];
+        collisions++;
+    }
+
+    /**
+     * Bounces a particle off a wall the same way as Physics.edgeCollide
+     */
+    private void bounceWall(ParticleStore s, int i, int wall, int width, int height) {
+        int r = s.size[i] / 2;
+        if (wall == WALL_X) {
+            s.x[i] = s.vx[i] < 0 ? r : width - r;
+            s.vx[i] = -s.vx[i] * Physics.c;
+        }
+        else {
+            s.y[i] = s.vy[i] < 0 ? r : height - r;
+            s.vy[i] = -s.vy[i] * Physics.c;
+        }
+        wallHits++;
+    }
+
+    private void push(double t, int i, int j) {
+        if (events == evTime.length) {
+            int cap = events * 2;
+            evTime = Arrays.copyOf(evTime, cap);
+            evI = Arrays.copyOf(evI, cap);
+            evJ = Arrays.copyOf(evJ, cap);
+            evVersionI = Arrays.copyOf(evVersionI, cap);
+            evVersionJ = Arrays.copyOf(evVersionJ, cap);
+        }
+        int k = events++;
+        while (k > 0) {
+            int parent = (k - 1) / 2;
+            if (evTime[parent] <= t) {
+                break;
+            }
+            this.moveEvent(parent, k);
+            k = parent;
+        }
+        evTime[k] = t;
+        evI[k] = i;
+        evJ[k] = j;
+        evVersionI[k] = version[i];
+        evVersionJ[k] = j >= 0 ? version[j] : 0;
+    }
+
+    private void pop() {
+        events--;
+        if (events == 0) {
+            return;
+        }
+        double t = evTime[events];
+        int k = 0;
+        while (true) {
+            int child = 2 * k + 1;
+            if (child >= events) {
+                break;
+            }
+            if (child + 1 < events && evTime[child + 1] < evTime[child]) {
+                child++;
+            }
+            if (t <= evTime[child]) {
+                break;
+            }
+            this.moveEvent(child, k);
+            k = child;
+        }
+        this.moveEvent(events, k);
+    }
+
+    private void moveEvent(int from, int to) {
+        evTime[to] = evTime[from];
+        evI[to] = evI[from];
+        evJ[to] = evJ[from];
+        evVersionI[to] = evVersionI[from];
+        evVersionJ[to] = evVersionJ[from];
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2014 Rowan Phipps
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package my.particlesim;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Loads particles from a CSV file in parallel.
+ *
+ * The file is in the same form HeadlessRunner.readParticles reads, one
+ * particle per line as mass,charge,x,y or mass,charge,x,y,vx,vy with blank
+ * lines and lines starting with # ignored.  It is cut into chunks of a few
+ * megabytes that end on line breaks, and the chunks are read and parsed at
+ * the same time into columns of their own.  The columns are then added to the
+ * store in file order with addAll, so the particles come out in the same
+ * order they would from reading the file line by line.
+ *
+ * A bad line is reported with its line number in the file.  If there are
+ * several, the first one is reported.  A line is bad if it does not have the
+ * right number of fields, a field is not a number, or the mass or charge do
+ * not fit in a particle.
+ * @author rowan
+ */
+public final class CsvLoader {
+    private static final int CHUNK = 1 << 22;   // bytes
+
+    private CsvLoader() {
+    }
+
+    /**
+     * The particles read from one chunk of the file
+     */
+    private static final class Chunk {
+        final long start;
+        final long end;
+        int lines = 0;
+        int n = 0;
+        short[] mass = new short[0];
+        short[] charge = new short[0];
+        double[] x = new double[0];
+        double[] y = new double[0];
+        double[] vx = new double[0];
+        double[] vy = new double[0];
+        int badLine = -1;   // counted from the start of the chunk
+        String problem = null;
+
+        Chunk(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        void add(int m, int q, double px, double py, double pvx, double pvy) {
+            if (n == x.length) {
+                int cap = Math.max(16, n * 2);
+                mass = Arrays.copyOf(mass, cap);
+                charge = Arrays.copyOf(charge, cap);
+                x = Arrays.copyOf(x, cap);
+                y = Arrays.copyOf(y, cap);
+                vx = Arrays.copyOf(vx, cap);
+                vy = Arrays.copyOf(vy, cap);
+            }
+            mass[n] = (short) m;
+            charge[n] = (short) q;
+            x[n] = px;
+            y[n] = py;
+            vx[n] = pvx;
+            vy[n] = pvy;
+            n++;
+        }
+    }
+
+    /**
+     * Loads the particles in a CSV file into a store
+     * @param file The file to read
+     * @param into The store to add the particles to
+     * @return The number of particles added
+     * @throws IOException If the file cannot be read or has a bad line in it,
+     * in which case nothing is added
+     */
+    public static int load(Path file, ParticleStore into) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            Chunk[] chunks = split(ch);
+            try {
+                IntStream.range(0, chunks.length).parallel().forEach((c) -> {
+                    try {
+                        parse(ch, chunks[c]);
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                });
+            } catch (UncheckedIOException ex) {
+                throw ex.getCause();
+            }
+
+            int line = 0;
+            int total = 0;
+            for (Chunk c : chunks) {
+                if (c.problem != null) {
+                    throw new IOException("line " + (line + c.badLine) + ": " + c.problem);
+                }
+                line += c.lines;
+                total += c.n;
+            }
+            into.ensureCapacity(into.size() + total);
+            for (Chunk c : chunks) {
+                into.addAll(c.mass, c.charge, c.x, c.y, c.vx, c.vy, c.n);
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Cuts a file into chunks that each end just after a line break, or at
+     * the end of the file
+     */
+    private static Chunk[] split(FileChannel ch) throws IOException {
+        long size = ch.size();
+        int count = (int) Math.max(1, (size + CHUNK - 1) / CHUNK);
+        long[] bounds = new long[count + 1];
+        ByteBuffer b = ByteBuffer.allocate(4096);
+        for (int c = 1; c < count; c++) {
+            long at = Math.max((long) c * CHUNK, bounds[c - 1]);
+            long found = size;
+            search:
+            while (at < size) {
+                b.clear();
+                int read = ch.read(b, at);
+                if (read <= 0) {
+                    break;
+                }
+                for (int k = 0; k < read; k++) {
+                    if (b.get(k) == '\n') {
+                        found = at + k + 1;
+                        break search;
+                    }
+                }
+                at += read;
+            }
+            bounds[c] = found;
+        }
+        bounds[count] = size;
+        Chunk[] chunks = new Chunk[count];
+        for (int c = 0; c < count; c++) {
+            chunks[c] = new Chunk(bounds[c], bounds[c + 1]);
+        }
+        return chunks;
+    }
+
+    /**
+     * Reads and parses one chunk.  A problem with a line is kept in the chunk
+     * rather than thrown, so the line number can be worked out afterwards.
+     */
+    private static void parse(FileChannel ch, Chunk c) throws IOException {
+        int length = (int) (c.end - c.start);
+        ByteBuffer b = ByteBuffer.allocate(length);
+        while (b.hasRemaining()) {
+            if (ch.read(b, c.start + b.position()) < 0) {
+                throw new IOException("the file got shorter while it was being read");
+            }
+        }
+        byte[] data = b.array();
+        int from = 0;
+        while (from < length) {
+            int to = from;
+            while (to < length && data[to] != '\n') {
+                to++;
+            }
+            c.lines++;
+            String line = new String(data, from, to - from, StandardCharsets.UTF_8).trim();
+            from = to + 1;
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] f = line.split(",");
+            if (f.length != 4 && f.length != 6) {
+                c.badLine = c.lines;
+                c.problem = "expected 4 or 6 fields but found " + f.length;
+                return;
+            }
+            try {
+                int mass = Integer.parseInt(f[0].trim());
+                int charge = Integer.parseInt(f[1].trim());
+                checkParticle(mass, charge);
+                double vx = f.length == 6 ? Double.parseDouble(f[4].trim()) : 0;
+                double vy = f.length == 6 ? Double.parseDouble(f[5].trim()) : 0;
+                c.add(mass, charge,
+                        Double.parseDouble(f[2].trim()), Double.parseDouble(f[3].trim()),
+                        vx, vy);
+            } catch (IllegalArgumentException ex) {
+                c.badLine = c.lines;
+                c.problem = ex.getMessage();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Checks that a mass and charge read from a file fit in a particle, with
+     * the same limits as Scenario.setMass and Scenario.setCharge
+     * @param mass The mass
+     * @param charge The charge
+     * @throws IllegalArgumentException If either of them does not fit
+     */
+    static void checkParticle(int mass, int charge) {
+        if (mass < 1 || mass > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("mass must be from 1 to " + Short.MAX_VALUE + ": " + mass);
+        }
+        if (charge < Short.MIN_VALUE || charge > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("charge must be from " + Short.MIN_VALUE
+                    + " to " + Short.MAX_VALUE + ": " + charge);
+        }
+    }
+}
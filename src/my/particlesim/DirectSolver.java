@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2014 Rowan Phipps
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package my.particlesim;
+
+import java.util.stream.IntStream;
+
+/**
+ * Calculates the exact forces by summing over every pair of particles.
+ * This is O(n^2) and is mostly useful as a reference to check the error of
+ * the faster solvers against.
+ * @author rowan
+ */
+public class DirectSolver implements ForceSolver {
+
+    @Override
+    public boolean isDeterministic() {
+        return true;
+    }
+
+    @Override
+    public void computeForces(ParticleStore particles, int width, int height,
+            double[] fx, double[] fy,
+            boolean gravity, boolean electro, boolean collision) {
+        int n = particles.size();
+
+        // every particle sums over all of the others so no two threads ever
+        // write to the same element
+        IntStream.range(0, n).parallel().forEach((i) -> {
+            forceOn(particles, i, fx, fy, gravity, electro);
+        });
+    }
+
+    /**
+     * Sums the force on one particle from all of the others it is not
+     * touching
+     * @param particles The particles
+     * @param i The index of the particle
+     * @param fx Receives the x component of the force at index i
+     * @param fy Receives the y component of the force at index i
+     * @param gravity Sets whether or not to simulate gravity
+     * @param electro Sets whether or not to simulate electrostatic forces
+     */
+    static void forceOn(ParticleStore particles, int i, double[] fx, double[] fy,
+            boolean gravity, boolean electro) {
+        int n = particles.size();
+        double[] x = particles.x;
+        double[] y = particles.y;
+        short[] mass = particles.mass;
+        short[] charge = particles.charge;
+        short[] size = particles.size;
+        double sumX = 0;
+        double sumY = 0;
+        for (int j = 0; j < n; j++) {
+            if (j == i) {
+                continue;
+            }
+            double dx = x[i] - x[j];
+            double dy = y[i] - y[j];
+            double d2 = dx * dx + dy * dy;
+            if (d2 == 0 || Math.sqrt(d2) <= (size[i] + size[j]) / 2) {
+                continue;
+            }
+            double coef = 0;
+            if (gravity) {
+                coef -= Physics.g * mass[i] * mass[j];
+            }
+            if (electro) {
+                coef += Physics.k * charge[i] * charge[j];
+            }
+            sumX += dx * coef / d2;
+            sumY += dy * coef / d2;
+        }
+        fx[i] = sumX;
+        fy[i] = sumY;
+    }
+}
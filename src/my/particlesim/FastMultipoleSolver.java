@@ -0,0 +1,721 @@
+/*
+ * Copyright (C) 2014 Rowan Phipps
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package my.particlesim;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Calculates gravity and electrostatic forces with the fast multipole method,
+ * which takes O(n) time for a fixed order.
+ *
+ * In two dimensions both forces come from a log potential.  Writing positions
+ * as complex numbers z, the field of sources with weights w_j is
+ * E(z) = sum w_j / (z - z_j), and the force on particle i is its own weight
+ * times the complex conjugate of E, which is (r_i - r_j) / d^2 for each pair.
+ * Masses and charges are two separate sets of sources, since each particle
+ * feels them with a different weight.
+ *
+ * The particles are put in an adaptive quadtree: a cell is split into its
+ * quarters only while it holds more than leafSize particles, so a dense
+ * cluster gets a deep tree and empty space gets none.  Going up the tree,
+ * each leaf turns its particles into a multipole expansion of the given order
+ * and every cell adds up the expansions of its children.  Then each cell is
+ * paired with the cells around it, starting from the root against itself.
+ * A pair that is far enough apart for its size turns the expansion of the
+ * source into a local expansion of the target, otherwise the bigger of the
+ * two is split and its quarters are tried instead.  Two leaves that are too
+ * close are left to be summed exactly.  Going down, every cell adds the
+ * local expansion of its parent.  A particle then gets the field from far
+ * away by evaluating the local expansion of its leaf, and sums over the
+ * particles in the leaves that were too close exactly.
+ *
+ * Every cell only meets a bounded number of others of about its own size,
+ * however the particles are spread, so the time is O(n) for clustered
+ * particles as well as spread out ones.  That stops holding where the tree is
+ * cut off at MAX_DEPTH, which only happens when more than leafSize particles
+ * are within about side / 2^20 of each other, and where particles touch,
+ * since every pair that could touch is summed exactly, so a pile of big
+ * particles on top of each other costs as many pairs as it has.
+ *
+ * The error falls by about half for each order.  Touching pairs are skipped
+ * in the exact part, the same as in Physics.update, and two cells are only
+ * counted as far apart when none of their particles can touch, so every
+ * touching pair ends up in the exact part.  The same pairs come out whatever the number of
+ * threads, and the expansions are added up in the same order, so the result
+ * is deterministic.
+ * @author rowan
+ */
+public class FastMultipoleSolver implements ForceSolver {
+    private static final int MAX_DEPTH = 20;
+    private static final int INDEX_BITS = 63 - 2 * MAX_DEPTH;
+    private static final int MAX_ORDER = 30;
+    private static final double THETA = 0.5;  // how fast the expansions must converge
+    private static final int FORK = 1 << 12;  // particles a cell needs to split it in parallel
+    private static final int MASS = 0;
+    private static final int CHARGE = 1;
+    private int order;
+    private int leafSize;
+    private int stride;     // coefficients per cell, order + 1
+    private double[][] binomial;
+
+    // the particles for the current step, sorted by cell
+    private int n = 0;
+    private long[] keys = new long[0];      // position in the tree, then index
+    private int[] sorted = new int[0];      // particle index at each slot
+    private int[] slot = new int[0];        // slot of each particle
+    private int[] owner = new int[0];       // leaf of each slot
+    private double[] sx = new double[0];
+    private double[] sy = new double[0];
+    private double[] wm = new double[0];    // mass, 0 without gravity
+    private double[] wq = new double[0];    // charge, 0 without electrostatics
+    private short[] ss = new short[0];      // size
+
+    // the tree, with the cells of each level after the ones above it
+    private int cells = 0;
+    private int depth = 0;                  // number of levels
+    private int[] levelStart = new int[MAX_DEPTH + 2];
+    private int leafCount = 0;
+    private int[] leaves = new int[0];
+    private double[] cx = new double[0];    // centre and half the side of each cell
+    private double[] cy = new double[0];
+    private double[] half = new double[0];
+    private double[] radius = new double[0];    // furthest particle from the centre
+    private int[] maxSize = new int[0];     // biggest particle in the cell
+    private int[] first = new int[0];       // slots of the particles in the cell
+    private int[] end = new int[0];
+    private int[] child = new int[0];       // first child, or -1 for a leaf
+    private int[] children = new int[0];    // number of children, all empty ones left out
+    private int[] parent = new int[0];
+    private int[][] near = new int[0][];    // leaves each leaf sums over exactly
+    private int[] nearCount = new int[0];
+    private double[][] mRe = new double[2][0];  // multipole expansions, by source set
+    private double[][] mIm = new double[2][0];
+    private double[][] lRe = new double[2][0];  // local expansions
+    private double[][] lIm = new double[2][0];
+    private boolean[] active = new boolean[2];
+
+    private final ThreadLocal<double[]> scratch = ThreadLocal.withInitial(() -> new double[4 * MAX_ORDER + 4]);
+
+    /**
+     * Creates a solver of order 12 with at most 32 particles in a leaf
+     */
+    public FastMultipoleSolver() {
+        this(12, 32);
+    }
+
+    /**
+     * Creates a solver
+     * @param order The number of terms in each expansion, from 2 to 30
+     * @param leafSize The most particles a leaf holds before it is split
+     */
+    public FastMultipoleSolver(int order, int leafSize) {
+        this.setOrder(order);
+        this.setLeafSize(leafSize);
+    }
+
+    /**
+     * Sets the number of terms in each expansion.  Higher orders are more
+     * accurate and slower.
+     * @param order The order, from 2 to 30
+     */
+    public final void setOrder(int order) {
+        if (order < 2 || order > MAX_ORDER) {
+            throw new IllegalArgumentException("order must be from 2 to " + MAX_ORDER + ": " + order);
+        }
+        this.order = order;
+        this.stride = order + 1;
+        binomial = new double[2 * order][2 * order];
+        for (int a = 0; a < 2 * order; a++) {
+            binomial[a][0] = 1;
+            for (int b = 1; b <= a; b++) {
+                binomial[a][b] = binomial[a - 1][b - 1] + (b < a ? binomial[a - 1][b] : 0);
+            }
+        }
+    }
+
+    public int getOrder() {
+        return this.order;
+    }
+
+    /**
+     * Sets how many particles a leaf can hold before it is split, which
+     * trades the exact sums against the expansions
+     * @param leafSize The number of particles
+     */
+    public final void setLeafSize(int leafSize) {
+        if (leafSize < 1) {
+            throw new IllegalArgumentException("leafSize must be positive: " + leafSize);
+        }
+        this.leafSize = leafSize;
+    }
+
+    public int getLeafSize() {
+        return this.leafSize;
+    }
+
+    @Override
+    public boolean isDeterministic() {
+        return true;
+    }
+
+    @Override
+    public void computeForces(ParticleStore particles, int width, int height,
+            double[] fx, double[] fy,
+            boolean gravity, boolean electro, boolean collision) {
+        this.build(particles, width, height, gravity, electro);
+        if (n == 0) {
+            return;
+        }
+        IntStream.range(0, leafCount).parallel().forEach((l) -> {
+            int leaf = leaves[l];
+            for (int k = first[leaf]; k < end[leaf]; k++) {
+                this.forceOn(k, leaf, fx, fy);
+            }
+        });
+    }
+
+    @Override
+    public void computeForces(ParticleStore particles, int width, int height,
+            int[] targets, int count, double[] fx, double[] fy,
+            boolean gravity, boolean electro, boolean collision) {
+        this.build(particles, width, height, gravity, electro);
+        if (n == 0) {
+            return;
+        }
+        IntStream.range(0, count).parallel().forEach((t) -> {
+            int k = slot[targets[t]];
+            this.forceOn(k, owner[k], fx, fy);
+        });
+    }
+
+    /**
+     * Builds the tree and does the upward, interaction and downward passes
+     */
+    private void build(ParticleStore particles, int width, int height,
+            boolean gravity, boolean electro) {
+        n = particles.size();
+        if (n == 0) {
+            return;
+        }
+        if (n >= 1 << INDEX_BITS) {
+            throw new IllegalArgumentException("at most " + ((1 << INDEX_BITS) - 1) + " particles: " + n);
+        }
+        active[MASS] = gravity;
+        active[CHARGE] = electro;
+
+        this.sortIntoTree(particles, width, height, gravity, electro);
+        this.splitCells();
+        int size = cells * stride;
+        if (mRe[0].length < size) {
+            int cap = Math.max(size, mRe[0].length + (mRe[0].length >> 1));
+            for (int set = 0; set < 2; set++) {
+                mRe[set] = new double[cap];
+                mIm[set] = new double[cap];
+                lRe[set] = new double[cap];
+                lIm[set] = new double[cap];
+            }
+        }
+
+        for (int l = depth - 1; l >= 0; l--) {
+            IntStream.range(levelStart[l], levelStart[l + 1]).parallel().forEach((c) -> {
+                if (child[c] < 0) {
+                    this.leafExpansion(c);
+                } else {
+                    this.shiftUp(c);
+                }
+            });
+        }
+        for (int set = 0; set < 2; set++) {
+            Arrays.fill(lRe[set], 0, size, 0);
+            Arrays.fill(lIm[set], 0, size, 0);
+        }
+        if (near.length < cells) {
+            int cap = Math.max(cells, near.length + (near.length >> 1));
+            near = Arrays.copyOf(near, cap);
+            nearCount = new int[cap];
+        }
+        Arrays.fill(nearCount, 0, cells, 0);
+        this.interact(0, 0);
+        for (int l = 1; l < depth; l++) {
+            IntStream.range(levelStart[l], levelStart[l + 1]).parallel().forEach((c) -> this.shiftDown(c));
+        }
+    }
+
+    /**
+     * Sorts the particles along a Z curve over the root cell, so the
+     * particles of every cell of the tree are next to each other, and copies
+     * what the passes need in that order
+     */
+    private void sortIntoTree(ParticleStore s, int width, int height, boolean gravity, boolean electro) {
+        if (sorted.length < n) {
+            int cap = Math.max(n, sorted.length * 2);
+            keys = new long[cap];
+            sorted = new int[cap];
+            slot = new int[cap];
+            owner = new int[cap];
+            sx = new double[cap];
+            sy = new double[cap];
+            wm = new double[cap];
+            wq = new double[cap];
+            ss = new short[cap];
+        }
+
+        // the root covers the world and is stretched over any particles outside it
+        double minX = 0;
+        double minY = 0;
+        double maxX = width;
+        double maxY = height;
+        for (int i = 0; i < n; i++) {
+            minX = Math.min(minX, s.x[i]);
+            minY = Math.min(minY, s.y[i]);
+            maxX = Math.max(maxX, s.x[i]);
+            maxY = Math.max(maxY, s.y[i]);
+        }
+        double side = Math.max(Math.max(maxX - minX, maxY - minY), 1) * 1.0001;
+        double x0 = minX;
+        double y0 = minY;
+        int dim = 1 << MAX_DEPTH;
+        IntStream.range(0, n).parallel().forEach((i) -> {
+            long bx = Math.min(Math.max((int) ((s.x[i] - x0) / side * dim), 0), dim - 1);
+            long by = Math.min(Math.max((int) ((s.y[i] - y0) / side * dim), 0), dim - 1);
+            keys[i] = (spread(bx) | spread(by) << 1) << INDEX_BITS | i;
+        });
+        Arrays.parallelSort(keys, 0, n);
+        IntStream.range(0, n).parallel().forEach((k) -> {
+            int i = (int) (keys[k] & ((1L << INDEX_BITS) - 1));
+            sorted[k] = i;
+            slot[i] = k;
+            sx[k] = s.x[i];
+            sy[k] = s.y[i];
+            wm[k] = gravity ? s.mass[i] : 0;
+            wq[k] = electro ? s.charge[i] : 0;
+            ss[k] = s.size[i];
+        });
+
+        cells = 0;
+        this.addCell(x0 + side / 2, y0 + side / 2, side / 2, 0, n, -1);
+    }
+
+    /**
+     * Spreads the low 20 bits of a number out to every other bit
+     */
+    private static long spread(long v) {
+        v = (v | v << 16) & 0x0000FFFF0000FFFFL;
+        v = (v | v << 8) & 0x00FF00FF00FF00FFL;
+        v = (v | v << 4) & 0x0F0F0F0F0F0F0F0FL;
+        v = (v | v << 2) & 0x3333333333333333L;
+        v = (v | v << 1) & 0x5555555555555555L;
+        return v;
+    }
+
+    /**
+     * Splits the cells one level at a time, starting from the root, until
+     * every leaf is small enough
+     */
+    private void splitCells() {
+        depth = 0;
+        leafCount = 0;
+        int from = 0;
+        while (from < cells) {
+            int to = cells;
+            levelStart[depth] = from;
+            for (int c = from; c < to; c++) {
+                if (end[c] - first[c] > leafSize && depth < MAX_DEPTH) {
+                    this.split(c, depth);
+                } else {
+                    child[c] = -1;
+                    children[c] = 0;
+                    if (leaves.length == leafCount) {
+                        leaves = Arrays.copyOf(leaves, Math.max(16, leafCount * 2));
+                    }
+                    leaves[leafCount++] = c;
+                    Arrays.fill(owner, first[c], end[c], c);
+                }
+            }
+            depth++;
+            from = to;
+        }
+        levelStart[depth] = cells;
+    }
+
+    /**
+     * Adds the quarters of a cell that have particles in them
+     */
+    private void split(int c, int level) {
+        int shift = INDEX_BITS + 2 * (MAX_DEPTH - level - 1);
+        child[c] = cells;
+        int from = first[c];
+        for (int q = 0; q < 4; q++) {
+            // the keys are sorted, so each quarter is a run of them
+            int lo = from;
+            int hi = end[c];
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if ((int) (keys[mid] >>> shift & 3) <= q) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            if (lo > from) {
+                double h = half[c] / 2;
+                this.addCell(cx[c] + ((q & 1) == 0 ? -h : h), cy[c] + ((q & 2) == 0 ? -h : h),
+                        h, from, lo, c);
+            }
+            from = lo;
+        }
+        children[c] = cells - child[c];
+    }
+
+    private void addCell(double x, double y, double h, int from, int to, int up) {
+        if (cx.length == cells) {
+            int cap = Math.max(64, cells * 2);
+            cx = Arrays.copyOf(cx, cap);
+            cy = Arrays.copyOf(cy, cap);
+            half = Arrays.copyOf(half, cap);
+            radius = Arrays.copyOf(radius, cap);
+            maxSize = Arrays.copyOf(maxSize, cap);
+            first = Arrays.copyOf(first, cap);
+            end = Arrays.copyOf(end, cap);
+            child = Arrays.copyOf(child, cap);
+            children = Arrays.copyOf(children, cap);
+            parent = Arrays.copyOf(parent, cap);
+        }
+        cx[cells] = x;
+        cy[cells] = y;
+        half[cells] = h;
+        first[cells] = from;
+        end[cells] = to;
+        parent[cells] = up;
+        cells++;
+    }
+
+    /**
+     * Makes the multipole expansion of a leaf from its particles.  About a
+     * centre c, the potential of the particles is
+     * a_0 log(z - c) + sum a_k / (z - c)^k with a_0 = sum w and
+     * a_k = -sum w (z_j - c)^k / k.
+     */
+    private void leafExpansion(int cell) {
+        double r = 0;
+        int biggest = 0;
+        for (int k = first[cell]; k < end[cell]; k++) {
+            double dx = sx[k] - cx[cell];
+            double dy = sy[k] - cy[cell];
+            r = Math.max(r, dx * dx + dy * dy);
+            biggest = Math.max(biggest, ss[k]);
+        }
+        radius[cell] = Math.sqrt(r);
+        maxSize[cell] = biggest;
+
+        for (int set = 0; set < 2; set++) {
+            double[] re = mRe[set];
+            double[] im = mIm[set];
+            int base = cell * stride;
+            Arrays.fill(re, base, base + stride, 0);
+            Arrays.fill(im, base, base + stride, 0);
+            if (!active[set]) {
+                continue;
+            }
+            double[] w = set == MASS ? wm : wq;
+            for (int k = first[cell]; k < end[cell]; k++) {
+                double dx = sx[k] - cx[cell];
+                double dy = sy[k] - cy[cell];
+                double pr = dx * w[k];
+                double pi = dy * w[k];
+                re[base] += w[k];
+                for (int t = 1; t <= order; t++) {
+                    re[base + t] -= pr / t;
+                    im[base + t] -= pi / t;
+                    double q = pr * dx - pi * dy;
+                    pi = pr * dy + pi * dx;
+                    pr = q;
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the multipole expansions of the children of a cell into it, each
+     * shifted from the centre of the child to the centre of the cell
+     */
+    private void shiftUp(int cell) {
+        int base = cell * stride;
+        for (int set = 0; set < 2; set++) {
+            Arrays.fill(mRe[set], base, base + stride, 0);
+            Arrays.fill(mIm[set], base, base + stride, 0);
+        }
+        double[] pow = scratch.get();
+        double r = 0;
+        int biggest = 0;
+        for (int ch = child[cell]; ch < child[cell] + children[cell]; ch++) {
+            // powers of z0, the centre of the child from the centre of the cell
+            double zr = cx[ch] - cx[cell];
+            double zi = cy[ch] - cy[cell];
+            r = Math.max(r, radius[ch] + Math.sqrt(zr * zr + zi * zi));
+            biggest = Math.max(biggest, maxSize[ch]);
+            pow[0] = 1;
+            pow[1] = 0;
+            for (int t = 1; t <= order; t++) {
+                pow[2 * t] = pow[2 * t - 2] * zr - pow[2 * t - 1] * zi;
+                pow[2 * t + 1] = pow[2 * t - 2] * zi + pow[2 * t - 1] * zr;
+            }
+
+            // b_l = -a_0 z0^l / l + sum for k = 1 to l of a_k z0^(l-k) C(l-1, k-1)
+            for (int set = 0; set < 2; set++) {
+                if (!active[set]) {
+                    continue;
+                }
+                double[] re = mRe[set];
+                double[] im = mIm[set];
+                int from = ch * stride;
+                double a0 = re[from];
+                re[base] += a0;
+                for (int l = 1; l <= order; l++) {
+                    double br = -a0 * pow[2 * l] / l;
+                    double bi = -a0 * pow[2 * l + 1] / l;
+                    for (int k = 1; k <= l; k++) {
+                        double ar = re[from + k];
+                        double ai = im[from + k];
+                        double cr = pow[2 * (l - k)];
+                        double ci = pow[2 * (l - k) + 1];
+                        double b = binomial[l - 1][k - 1];
+                        br += (ar * cr - ai * ci) * b;
+                        bi += (ar * ci + ai * cr) * b;
+                    }
+                    re[base + l] += br;
+                    im[base + l] += bi;
+                }
+            }
+        }
+        // the corners of the cell are never further away than that
+        radius[cell] = Math.min(r, half[cell] * Math.sqrt(2));
+        maxSize[cell] = biggest;
+    }
+
+    /**
+     * Returns whether two cells are far enough apart for the expansion of one
+     * to be used for the other, and none of their particles can touch.  The
+     * terms of the expansion shrink by the bigger radius over the distance
+     * less the smaller radius, which has to be at most THETA.
+     */
+    private boolean separated(int target, int source) {
+        double dx = cx[source] - cx[target];
+        double dy = cy[source] - cy[target];
+        double d = Math.sqrt(dx * dx + dy * dy);
+        double big = Math.max(radius[target], radius[source]);
+        double small = Math.min(radius[target], radius[source]);
+        return big <= THETA * (d - small)
+                && d - big - small > (maxSize[target] + maxSize[source]) / 2.0;
+    }
+
+    /**
+     * Returns whether the target of a pair of cells that are too close is
+     * the one to split
+     */
+    private boolean splitsTarget(int target, int source) {
+        return child[source] < 0 || (child[target] >= 0 && half[target] >= half[source]);
+    }
+
+    /**
+     * Adds the far field of a source cell to the local expansions of a target
+     * cell and the cells under it, and lists the leaves under the source that
+     * the leaves under the target have to sum over exactly.  Only the target
+     * and the cells under it are written, so the quarters of a target can be
+     * done at the same time, and each cell always gets its parts in the same
+     * order.
+     */
+    private void interact(int target, int source) {
+        if (this.separated(target, source)) {
+            this.multipoleToLocal(source, target);
+        } else if (child[target] < 0 && child[source] < 0) {
+            if (near[target] == null || near[target].length == nearCount[target]) {
+                near[target] = Arrays.copyOf(near[target] == null ? new int[0] : near[target],
+                        Math.max(16, nearCount[target] * 2));
+            }
+            near[target][nearCount[target]++] = source;
+        } else if (this.splitsTarget(target, source)) {
+            int from = child[target];
+            int to = from + children[target];
+            if (end[target] - first[target] > FORK) {
+                IntStream.range(from, to).parallel().forEach((c) -> this.interact(c, source));
+            } else {
+                for (int c = from; c < to; c++) {
+                    this.interact(c, source);
+                }
+            }
+        } else {
+            for (int c = child[source]; c < child[source] + children[source]; c++) {
+                this.interact(target, c);
+            }
+        }
+    }
+
+    /**
+     * Adds the local expansion of the parent of a cell, moved to its centre.
+     * b'_l = sum for k = l to p of b_k C(k, l) d^(k-l), where d is the centre
+     * of the child from the centre of the parent.
+     */
+    private void shiftDown(int cell) {
+        int up = parent[cell];
+        int from = up * stride;
+        int base = cell * stride;
+        double[] pow = scratch.get();
+        double dr = cx[cell] - cx[up];
+        double di = cy[cell] - cy[up];
+        pow[0] = 1;
+        pow[1] = 0;
+        for (int t = 1; t < order; t++) {
+            pow[2 * t] = pow[2 * t - 2] * dr - pow[2 * t - 1] * di;
+            pow[2 * t + 1] = pow[2 * t - 2] * di + pow[2 * t - 1] * dr;
+        }
+        for (int set = 0; set < 2; set++) {
+            if (!active[set]) {
+                continue;
+            }
+            double[] re = lRe[set];
+            double[] im = lIm[set];
+            for (int l = 1; l <= order; l++) {
+                double br = 0;
+                double bi = 0;
+                for (int k = l; k <= order; k++) {
+                    double ar = re[from + k];
+                    double ai = im[from + k];
+                    double cr = pow[2 * (k - l)];
+                    double ci = pow[2 * (k - l) + 1];
+                    double b = binomial[k][l];
+                    br += (ar * cr - ai * ci) * b;
+                    bi += (ar * ci + ai * cr) * b;
+                }
+                re[base + l] += br;
+                im[base + l] += bi;
+            }
+        }
+    }
+
+    /**
+     * Adds the multipole expansion of a cell to the local expansion of
+     * another.  With z0 the centre of the source from the centre of the
+     * target, b_l = (-a_0 / l + sum for k = 1 to p of (-1)^k a_k / z0^k C(l+k-1, k-1)) / z0^l.
+     * The constant term is never needed for the field, so only the terms from
+     * 1 up are kept.
+     */
+    private void multipoleToLocal(int source, int target) {
+        int from = source * stride;
+        int base = target * stride;
+        double zr = cx[source] - cx[target];
+        double zi = cy[source] - cy[target];
+        double[] work = scratch.get();
+        // work holds 1 / z0^k for k up to p, then the (-1)^k a_k / z0^k terms
+        double d = zr * zr + zi * zi;
+        double ir = zr / d;
+        double ii = -zi / d;
+        work[0] = 1;
+        work[1] = 0;
+        for (int t = 1; t <= order; t++) {
+            work[2 * t] = work[2 * t - 2] * ir - work[2 * t - 1] * ii;
+            work[2 * t + 1] = work[2 * t - 2] * ii + work[2 * t - 1] * ir;
+        }
+        int terms = 2 * stride;
+        for (int set = 0; set < 2; set++) {
+            if (!active[set]) {
+                continue;
+            }
+            double[] re = mRe[set];
+            double[] im = mIm[set];
+            double a0 = re[from];
+            for (int k = 1; k <= order; k++) {
+                double ar = re[from + k];
+                double ai = im[from + k];
+                double sign = (k & 1) == 0 ? 1 : -1;
+                work[terms + 2 * k] = sign * (ar * work[2 * k] - ai * work[2 * k + 1]);
+                work[terms + 2 * k + 1] = sign * (ar * work[2 * k + 1] + ai * work[2 * k]);
+            }
+            double[] outRe = lRe[set];
+            double[] outIm = lIm[set];
+            for (int l = 1; l <= order; l++) {
+                double sr = -a0 / l;
+                double si = 0;
+                for (int k = 1; k <= order; k++) {
+                    // C(l+k-1, k-1) is row l+k-1, but C(l+k-1, l) is the same
+                    double b = binomial[l + k - 1][l];
+                    sr += work[terms + 2 * k] * b;
+                    si += work[terms + 2 * k + 1] * b;
+                }
+                outRe[base + l] += sr * work[2 * l] - si * work[2 * l + 1];
+                outIm[base + l] += sr * work[2 * l + 1] + si * work[2 * l];
+            }
+        }
+    }
+
+    /**
+     * Works out the force on the particle in a slot, from the local expansion
+     * of its leaf and exactly from the particles in the leaves near it
+     */
+    private void forceOn(int k, int leaf, double[] fx, double[] fy) {
+        int base = leaf * stride;
+        double x = sx[k];
+        double y = sy[k];
+        double gm = Physics.g * wm[k];
+        double kq = Physics.k * wq[k];
+
+        // the field is the derivative of the local expansion, sum l b_l (z - c)^(l-1)
+        double zr = x - cx[leaf];
+        double zi = y - cy[leaf];
+        double sumX = 0;
+        double sumY = 0;
+        for (int set = 0; set < 2; set++) {
+            double weight = set == MASS ? -gm : kq;
+            if (!active[set] || weight == 0) {
+                continue;
+            }
+            double[] re = lRe[set];
+            double[] im = lIm[set];
+            double er = order * re[base + order];
+            double ei = order * im[base + order];
+            for (int l = order - 1; l >= 1; l--) {
+                double r = er * zr - ei * zi + l * re[base + l];
+                ei = er * zi + ei * zr + l * im[base + l];
+                er = r;
+            }
+            // the force is the weight times the conjugate of the field
+            sumX += weight * er;
+            sumY -= weight * ei;
+        }
+
+        for (int m = 0; m < nearCount[leaf]; m++) {
+            int other = near[leaf][m];
+            for (int j = first[other]; j < end[other]; j++) {
+                double dx = x - sx[j];
+                double dy = y - sy[j];
+                double d2 = dx * dx + dy * dy;
+                if (d2 == 0 || Math.sqrt(d2) <= (ss[k] + ss[j]) / 2) {
+                    continue;
+                }
+                double coef = (kq * wq[j] - gm * wm[j]) / d2;
+                sumX += dx * coef;
+                sumY += dy * coef;
+            }
+        }
+
+        int i = sorted[k];
+        fx[i] = sumX;
+        fy[i] = sumY;
+    }
+}
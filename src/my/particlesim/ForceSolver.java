@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2014 Rowan Phipps
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package my.particlesim;
+
+import java.util.stream.IntStream;
+
+/**
+ * Calculates the gravity and electrostatic forces acting on a set of particles.
+ * Implementations use the same force laws as Physics.doGravity and
+ * Physics.doElectro but are free to approximate them.
+ * @author rowan
+ */
+public interface ForceSolver {
+
+    /**
+     * Calculates the net force on every particle.
+     * Pairs of particles that are touching are always skipped, whether or not
+     * collisions are on, the same as in Physics.update.
+     * @param particles The particles
+     * @param width The current width of the world
+     * @param height The current height of the world
+     * @param fx Receives the x component of the force on each particle
+     * @param fy Receives the y component of the force on each particle
+     * @param gravity Sets whether or not to simulate gravity
+     * @param electro Sets whether or not to simulate electrostatic forces
+     * @param collision Sets whether or not particles collide
+     */
+    void computeForces(ParticleStore particles, int width, int height,
+            double[] fx, double[] fy,
+            boolean gravity, boolean electro, boolean collision);
+
+    /**
+     * Calculates the net force on some of the particles, from all of them.
+     * Only the elements of fx and fy for the targets are written.  By default
+     * this sums over every particle for each target, which is O(count * n),
+     * so solvers that can do better should override it.
+     * @param particles The particles
+     * @param width The current width of the world
+     * @param height The current height of the world
+     * @param targets The indexes of the particles to calculate forces for
+     * @param count The number of targets
+     * @param fx Receives the x component of the force on each target
+     * @param fy Receives the y component of the force on each target
+     * @param gravity Sets whether or not to simulate gravity
+     * @param electro Sets whether or not to simulate electrostatic forces
+     * @param collision Sets whether or not particles collide
+     */
+    default void computeForces(ParticleStore particles, int width, int height,
+            int[] targets, int count, double[] fx, double[] fy,
+            boolean gravity, boolean electro, boolean collision) {
+        IntStream.range(0, count).parallel().forEach((t) -> {
+            DirectSolver.forceOn(particles, targets[t], fx, fy, gravity, electro);
+        });
+    }
+
+    /**
+     * Returns whether this solver always gives exactly the same forces for
+     * the same particles, down to the last bit, however many threads it runs
+     * on.  That needs the work to be split up the same way every time and the
+     * parts added together in the same order.  Simulation only accepts
+     * solvers that say so when it is in deterministic mode.
+     * @return True if the forces are reproducible, false unless a solver
+     * says otherwise
+     */
+    default boolean isDeterministic() {
+        return false;
+    }
+
+    /**
+     * Measures how far the forces from one solver are from another.
+     * The error is the length of the difference between the two force fields
+     * divided by the length of the reference force field.
+     * @param reference The solver to treat as correct
+     * @param solver The solver to check
+     * @param particles The particles to calculate forces for
+     * @param width The current width of the world
+     * @param height The current height of the world
+     * @param gravity Sets whether or not to simulate gravity
+     * @param electro Sets whether or not to simulate electrostatic forces
+     * @return The relative error of solver
+     */
+    static double relativeError(ForceSolver reference, ForceSolver solver,
+            ParticleStore particles, int width, int height,
+            boolean gravity, boolean electro) {
+        return relativeError(reference, solver, particles, width, height, gravity, electro, false);
+    }
+
+    /**
+     * Measures how far the forces from one solver are from another, with
+     * collisions on or off
+     * @param reference The solver to treat as correct
+     * @param solver The solver to check
+     * @param particles The particles to calculate forces for
+     * @param width The current width of the world
+     * @param height The current height of the world
+     * @param gravity Sets whether or not to simulate gravity
+     * @param electro Sets whether or not to simulate electrostatic forces
+     * @param collision Sets whether or not particles collide
+     * @return The relative error of solver
+     */
+    static double relativeError(ForceSolver reference, ForceSolver solver,
+            ParticleStore particles, int width, int height,
+            boolean gravity, boolean electro, boolean collision) {
+        int n = particles.size();
+        double[] rx = new double[n];
+        double[] ry = new double[n];
+        double[] sx = new double[n];
+        double[] sy = new double[n];
+        reference.computeForces(particles, width, height, rx, ry, gravity, electro, collision);
+        solver.computeForces(particles, width, height, sx, sy, gravity, electro, collision);
+
+        double diff = 0;
+        double norm = 0;
+        for (int i = 0; i < n; i++) {
+            diff += (sx[i] - rx[i]) * (sx[i] - rx[i]) + (sy[i] - ry[i]) * (sy[i] - ry[i]);
+            norm += rx[i] * rx[i] + ry[i] * ry[i];
+        }
+        return norm == 0 ? Math.sqrt(diff) : Math.sqrt(diff / norm);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2014 Rowan Phipps
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package my.particlesim;
+
+import java.util.Arrays;
+
+/**
+ * A spatial hash broadphase.
+ * The world is divided into square cells as wide as the largest particle, so
+ * two particles can only be touching if they are in the same or neighbouring
+ * cells.  The cells are hashed into a table that is rebuilt every step with
+ * a counting sort, so finding pairs is close to linear in the number of
+ * particles.
+ * @author rowan
+ */
+public class GridBroadphase implements Broadphase {
+    private int[] cellX = new int[0];   // cell of each particle
+    private int[] cellY = new int[0];
+    private int[] bucket = new int[0];  // hash table slot of each particle
+    private int[] bucketStart = new int[0];
+    private int[] sorted = new int[0];  // particle indexes ordered by slot
+    private final int[] nearby = new int[9];
+
+    @Override
+    public void findPairs(ParticleStore particles, PairConsumer pairs) {
+        int n = particles.size();
+        if (n < 2) {
+            return;
+        }
+        if (cellX.length < n) {
+            int cap = Math.max(n, cellX.length * 2);
+            cellX = new int[cap];
+            cellY = new int[cap];
+            bucket = new int[cap];
+            sorted = new int[cap];
+        }
+        int slots = Integer.highestOneBit(n) * 4;
+        if (bucketStart.length != slots + 1) {
+            bucketStart = new int[slots + 1];
+        }
+        int mask = slots - 1;
+
+        // the largest diameter is the furthest apart two touching particles can be
+        int cell = 1;
+        for (int i = 0; i < n; i++) {
+            cell = Math.max(cell, particles.size[i]);
+        }
+
+        Arrays.fill(bucketStart, 0);
+        for (int i = 0; i < n; i++) {
+            cellX[i] = (int) Math.floor(particles.x[i] / cell);
+            cellY[i] = (int) Math.floor(particles.y[i] / cell);
+            bucket[i] = hash(cellX[i], cellY[i]) & mask;
+            bucketStart[bucket[i] + 1]++;
+        }
+        for (int s = 0; s < slots; s++) {
+            bucketStart[s + 1] += bucketStart[s];
+        }
+        int[] fill = Arrays.copyOf(bucketStart, slots);
+        for (int i = 0; i < n; i++) {
+            sorted[fill[bucket[i]]++] = i;
+        }
+
+        for (int i = 0; i < n; i++) {
+            // neighbouring cells can hash to the same slot so only look at
+            // each slot once
+            int count = 0;
+            for (int ox = -1; ox <= 1; ox++) {
+                for (int oy = -1; oy <= 1; oy++) {
+                    int s = hash(cellX[i] + ox, cellY[i] + oy) & mask;
+                    boolean seen = false;
+                    for (int k = 0; k < count; k++) {
+                        seen |= nearby[k] == s;
+                    }
+                    if (!seen) {
+                        nearby[count++] = s;
+                    }
+                }
+            }
+
+            for (int k = 0; k < count; k++) {
+                int s = nearby[k];
+                for (int m = bucketStart[s]; m < bucketStart[s + 1]; m++) {
+                    int j = sorted[m];
+                    // slots are shared by cells that are far apart as well
+                    if (j > i && Math.abs(cellX[j] - cellX[i]) <= 1
+                            && Math.abs(cellY[j] - cellY[i]) <= 1) {
+                        pairs.accept(i, j);
+                    }
+                }
+            }
+        }
+    }
+
+    private static int hash(int x, int y) {
+        return (x * 73856093) ^ (y * 19349663);
+    }
+}
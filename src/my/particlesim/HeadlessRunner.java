@@ -0,0 +1,537 @@
+/*
+ * Copyright (C) 2014 Rowan Phipps
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package my.particlesim;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Map;
+
+/**
+ * Runs a simulation from the command line without opening a window.
+ *
+ * Particles are read from a CSV file with one particle per line in the form
+ * mass,charge,x,y or mass,charge,x,y,vx,vy.  Blank lines and lines starting
+ * with # are ignored.  The final state is written in the same form so it can
+ * be fed back in, and a timing summary is printed to standard error.
+ *
+ * Instead of CSV a run can start from a binary state file written by
+ * StateFile, and it can write state files as it goes so a long run that is
+ * stopped can be picked up again where it left off.
+ *
+ * Run with --help to see the options.
+ * @author rowan
+ */
+public class HeadlessRunner {
+    private String in = null;
+    private String out = null;
+    private long steps = 1000;
+    private double dt = 1;
+    private int width = 1400;
+    private int height = 800;
+    private boolean gravity = true;
+    private boolean electro = true;
+    private boolean collision = false;
+    private boolean continuous = false;
+    private boolean open = false;
+    private boolean merge = false;
+    private boolean metrics = false;
+    private boolean deterministic = false;
+    private String hashes = null;
+    private String solver = "pair";
+    private double theta = 0.5;
+    private int order = 12;
+    private double softening = 0;
+    private String broadphase = "grid";
+    private String integrator = "euler";
+    private String load = null;
+    private String scenario = null;
+    private int count = 10000;
+    private long seed = 1;
+    private double speed = 0;
+    private String save = null;
+    private long saveEvery = 0;
+    private String record = null;
+    private int recordEvery = 1;
+    private int keyframeEvery = 100;
+
+    public static void main(String[] args) throws IOException {
+        HeadlessRunner runner = new HeadlessRunner();
+        Simulation sim = null;
+        try {
+            runner.parse(args);
+            sim = runner.makeSimulation();
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            usage(System.err);
+            System.exit(2);
+        }
+        runner.run(sim);
+    }
+
+    private static void usage(PrintStream s) {
+        s.println("usage: HeadlessRunner [options]");
+        s.println("  --in FILE              initial particles as CSV (default stdin)");
+        s.println("  --out FILE             final particles as CSV (default stdout)");
+        s.println("  --steps N              number of steps to run (default 1000)");
+        s.println("  --dt T                 physics delta t of each step (default 1,");
+        s.println("                         the same as the window)");
+        s.println("  --width W              width of the world (default 1400)");
+        s.println("  --height H             height of the world (default 800)");
+        s.println("  --[no-]gravity         simulate gravity (default on)");
+        s.println("  --[no-]electro         simulate electrostatic forces (default on)");
+        s.println("  --[no-]collision       simulate collisions (default off)");
+        s.println("  --[no-]continuous      find collisions as particles move instead of");
+        s.println("                         by overlap after each step (default off)");
+        s.println("  --[no-]merge           touching particles merge instead of bouncing,");
+        s.println("                         with --collision (default off)");
+        s.println("  --[no-]open            remove particles that leave the world instead");
+        s.println("                         of bouncing them off the edges (default off)");
+        s.println("  --[no-]metrics         time each phase of every step and print the");
+        s.println("                         percentiles at the end (default off)");
+        s.println("  --[no-]deterministic   make every run bit for bit the same and print");
+        s.println("                         a hash of the final state (default off)");
+        s.println("  --hashes FILE          write the state hash after every step, one per");
+        s.println("                         line, turns on --deterministic");
+        s.println("  --solver NAME          pair, direct, fused, tiled, barnes-hut, fmm");
+        s.println("                         or reference (default pair)");
+        s.println("  --softening EPS        softening length for the fused solver (default 0)");
+        s.println("  --theta A              Barnes-Hut opening angle (default 0.5)");
+        s.println("  --order P              terms in each fmm expansion (default 12)");
+        s.println("  --broadphase NAME      grid, sap or brute (default grid)");
+        s.println("  --integrator NAME      euler, verlet, leapfrog or block");
+        s.println("                         (default euler)");
+        s.println("  --load FILE            start from a binary state file instead of --in");
+        s.println("  --scenario NAME        start from generated particles instead of --in:");
+        s.println("                         uniform, cluster, disc, lattice or plasma");
+        s.println("  --count N              particles to generate (default 10000)");
+        s.println("  --seed S               seed for --scenario (default 1)");
+        s.println("  --speed V              spread of random speeds for --scenario (default 0)");
+        s.println("  --save FILE            write a binary state file at the end");
+        s.println("  --save-every N         also write it every N steps (default 0, never)");
+        s.println("  --record FILE          record every step to a trajectory file");
+        s.println("  --record-every N       only record every N steps (default 1)");
+        s.println("  --keyframe-every N     frames between keyframes (default 100)");
+    }
+
+    /**
+     * Reads the command line options
+     * @param args The command line
+     */
+    void parse(String[] args) {
+        for (int a = 0; a < args.length; a++) {
+            String arg = args[a];
+            switch (arg) {
+                case "--help":
+                    usage(System.out);
+                    System.exit(0);
+                    break;
+                case "--gravity":
+                    gravity = true;
+                    break;
+                case "--no-gravity":
+                    gravity = false;
+                    break;
+                case "--electro":
+                    electro = true;
+                    break;
+                case "--no-electro":
+                    electro = false;
+                    break;
+                case "--collision":
+                    collision = true;
+                    break;
+                case "--no-collision":
+                    collision = false;
+                    break;
+                case "--continuous":
+                    continuous = true;
+                    break;
+                case "--no-continuous":
+                    continuous = false;
+                    break;
+                case "--merge":
+                    merge = true;
+                    break;
+                case "--no-merge":
+                    merge = false;
+                    break;
+                case "--open":
+                    open = true;
+                    break;
+                case "--no-open":
+                    open = false;
+                    break;
+                case "--metrics":
+                    metrics = true;
+                    break;
+                case "--no-metrics":
+                    metrics = false;
+                    break;
+                case "--deterministic":
+                    deterministic = true;
+                    break;
+                case "--no-deterministic":
+                    deterministic = false;
+                    break;
+                default:
+                    if (a + 1 >= args.length) {
+                        throw new IllegalArgumentException("unknown or incomplete option: " + arg);
+                    }
+                    this.option(arg, args[++a]);
+            }
+        }
+    }
+
+    /**
+     * Reads an option that takes a value
+     * @param name The name of the option
+     * @param value The value given for it
+     */
+    private void option(String name, String value) {
+        try {
+            switch (name) {
+                case "--in":
+                    in = value;
+                    break;
+                case "--out":
+                    out = value;
+                    break;
+                case "--steps":
+                    steps = Long.parseLong(value);
+                    break;
+                case "--dt":
+                    dt = Double.parseDouble(value);
+                    break;
+                case "--width":
+                    width = Integer.parseInt(value);
+                    break;
+                case "--height":
+                    height = Integer.parseInt(value);
+                    break;
+                case "--solver":
+                    solver = value;
+                    break;
+                case "--theta":
+                    theta = Double.parseDouble(value);
+                    break;
+                case "--order":
+                    order = Integer.parseInt(value);
+                    break;
+                case "--softening":
+                    softening = Double.parseDouble(value);
+                    break;
+                case "--broadphase":
+                    broadphase = value;
+                    break;
+                case "--integrator":
+                    integrator = value;
+                    break;
+                case "--load":
+                    load = value;
+                    break;
+                case "--scenario":
+                    scenario = value;
+                    Scenario.Kind.named(value);
+                    break;
+                case "--count":
+                    count = Integer.parseInt(value);
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(value);
+                    break;
+                case "--speed":
+                    speed = Double.parseDouble(value);
+                    break;
+                case "--hashes":
+                    hashes = value;
+                    deterministic = true;
+                    break;
+                case "--save":
+                    save = value;
+                    break;
+                case "--save-every":
+                    saveEvery = Long.parseLong(value);
+                    break;
+                case "--record":
+                    record = value;
+                    break;
+                case "--record-every":
+                    recordEvery = Integer.parseInt(value);
+                    break;
+                case "--keyframe-every":
+                    keyframeEvery = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option: " + name);
+            }
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("bad value for " + name + ": " + value);
+        }
+    }
+
+    /**
+     * Makes the force solver named on the command line
+     * @return The solver, or null for the Physics.update path
+     */
+    ForceSolver makeSolver() {
+        switch (solver) {
+            case "pair":
+                return new PairForceSolver();
+            case "direct":
+                return new DirectSolver();
+            case "tiled":
+                return new TiledForceSolver();
+            case "fused":
+                FusedKernelSolver fused = new FusedKernelSolver();
+                fused.setSoftening(softening);
+                return fused;
+            case "barnes-hut":
+                return new BarnesHutSolver(theta);
+            case "fmm":
+                return new FastMultipoleSolver(order, 32);
+            case "reference":
+                return null;
+            default:
+                throw new IllegalArgumentException("unknown solver: " + solver);
+        }
+    }
+
+    /**
+     * Makes the broadphase named on the command line
+     * @return The broadphase
+     */
+    Broadphase makeBroadphase() {
+        switch (broadphase) {
+            case "grid":
+                return new GridBroadphase();
+            case "sap":
+                return new SweepAndPruneBroadphase();
+            case "brute":
+                return new BruteForceBroadphase();
+            default:
+                throw new IllegalArgumentException("unknown broadphase: " + broadphase);
+        }
+    }
+
+    /**
+     * Makes the integrator named on the command line
+     * @return The integrator
+     */
+    Integrator makeIntegrator() {
+        switch (integrator) {
+            case "euler":
+                return new EulerIntegrator();
+            case "verlet":
+                return new VelocityVerletIntegrator();
+            case "leapfrog":
+                return new LeapfrogIntegrator();
+            case "block":
+                return new BlockStepIntegrator();
+            default:
+                throw new IllegalArgumentException("unknown integrator: " + integrator);
+        }
+    }
+
+    /**
+     * Makes an empty simulation set up the way the command line asked for
+     * @return The simulation
+     */
+    Simulation makeSimulation() {
+        Simulation sim = new Simulation(width, height);
+        sim.setForceSolver(this.makeSolver());
+        sim.setBroadphase(this.makeBroadphase());
+        sim.setIntegrator(this.makeIntegrator());
+        sim.setContinuousCollisions(continuous);
+        sim.setOpenBoundaries(open);
+        sim.setMerging(merge);
+        if (metrics) {
+            sim.setMetrics(new StepMetrics());
+        }
+        sim.setDeterministic(deterministic);
+        return sim;
+    }
+
+    /**
+     * Loads the particles, runs the simulation and writes the result
+     * @param sim The simulation to run
+     */
+    private void run(Simulation sim) throws IOException {
+        long loadStart = System.nanoTime();
+        if (load != null) {
+            StateFile.load(sim, Paths.get(load));
+        }
+        else if (scenario != null) {
+            Scenario sc = new Scenario(Scenario.Kind.named(scenario));
+            sc.setSeed(seed);
+            sc.setThermalSpeed(speed);
+            sc.generate(sim.getParticles(), count, width, height);
+        }
+        else if (in != null) {
+            CsvLoader.load(Paths.get(in), sim.getParticles());
+        }
+        else {
+            try (Reader r = new InputStreamReader(System.in, StandardCharsets.UTF_8)) {
+                readParticles(new BufferedReader(r), sim.getParticles());
+            }
+        }
+        TrajectoryRecorder recorder = null;
+        if (record != null) {
+            recorder = new TrajectoryRecorder(Paths.get(record), keyframeEvery, 1024, 65536, 8);
+            recorder.setRecordEvery(recordEvery);
+            sim.setRecorder(recorder);
+        }
+        Writer hashOut = hashes == null ? null
+                : Files.newBufferedWriter(Paths.get(hashes), StandardCharsets.UTF_8);
+        long runStart = System.nanoTime();
+
+        long saveNanos = 0;
+        try {
+            for (long s = 0; s < steps; s++) {
+                sim.step(dt, gravity, electro, collision);
+                if (hashOut != null) {
+                    hashOut.write(String.format("%d %016x%n", sim.getSteps(), sim.getStateHash()));
+                }
+                if (save != null && saveEvery > 0 && (s + 1) % saveEvery == 0 && s + 1 < steps) {
+                    long saveStart = System.nanoTime();
+                    StateFile.save(sim, Paths.get(save));
+                    saveNanos += System.nanoTime() - saveStart;
+                }
+            }
+        } finally {
+            if (hashOut != null) {
+                hashOut.close();
+            }
+        }
+        long runEnd = System.nanoTime();
+        double runMs = (runEnd - runStart - saveNanos) / 1e6;
+        if (recorder != null) {
+            sim.setRecorder(null);
+            recorder.close();
+        }
+
+        if (save != null) {
+            long saveStart = System.nanoTime();
+            StateFile.save(sim, Paths.get(save));
+            saveNanos += System.nanoTime() - saveStart;
+        }
+        try (Writer w = out == null
+                ? new OutputStreamWriter(System.out, StandardCharsets.UTF_8)
+                : Files.newBufferedWriter(Paths.get(out), StandardCharsets.UTF_8)) {
+            writeParticles(new BufferedWriter(w), sim.getParticles());
+        }
+
+        System.err.printf("particles    %d%n", sim.getParticles().size());
+        System.err.printf("steps        %d%n", sim.getSteps());
+        if (open) {
+            System.err.printf("escaped      %d%n", sim.getEscaped());
+        }
+        if (merge) {
+            System.err.printf("merged       %d%n", sim.getMerges());
+        }
+        if (deterministic) {
+            System.err.printf("state hash   %016x%n", StateHash.of(sim.getParticles()));
+        }
+        System.err.printf("load         %.1f ms%n", (runStart - loadStart) / 1e6);
+        System.err.printf("run          %.1f ms%n", runMs);
+        if (save != null) {
+            System.err.printf("save         %.1f ms%n", saveNanos / 1e6);
+        }
+        if (sim.getForceSolver() instanceof TiledForceSolver) {
+            TiledForceSolver tiled = (TiledForceSolver) sim.getForceSolver();
+            System.err.printf("last forces  %.3f ms%n", tiled.getWallNanos() / 1e6);
+            for (Map.Entry<String, Long> w : tiled.getWorkerNanos().entrySet()) {
+                System.err.printf("  %-24s %.3f ms busy%n", w.getKey(), w.getValue() / 1e6);
+            }
+        }
+        if (recorder != null) {
+            System.err.printf("recorded     %d frames, %d dropped%n",
+                    recorder.getRecordedFrames(), recorder.getDroppedFrames());
+        }
+        if (steps > 0) {
+            System.err.printf("per step     %.3f ms%n", runMs / steps);
+            System.err.printf("steps/sec    %.1f%n", steps / (runMs / 1000));
+        }
+        if (sim.getMetrics() != null) {
+            for (String line : sim.getMetrics().describe()) {
+                System.err.println(line);
+            }
+        }
+    }
+
+    /**
+     * Reads particles in CSV form into a store
+     * @param r The CSV to read
+     * @param store The store to add the particles to
+     * @throws IOException If the CSV cannot be read or has a bad line in it,
+     * such as a mass or charge that does not fit in a particle
+     */
+    public static void readParticles(BufferedReader r, ParticleStore store) throws IOException {
+        String line;
+        int number = 0;
+        while ((line = r.readLine()) != null) {
+            number++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] f = line.split(",");
+            if (f.length != 4 && f.length != 6) {
+                throw new IOException("line " + number + ": expected 4 or 6 fields but found " + f.length);
+            }
+            try {
+                int mass = Integer.parseInt(f[0].trim());
+                int charge = Integer.parseInt(f[1].trim());
+                CsvLoader.checkParticle(mass, charge);
+                double vx = f.length == 6 ? Double.parseDouble(f[4].trim()) : 0;
+                double vy = f.length == 6 ? Double.parseDouble(f[5].trim()) : 0;
+                store.add(mass, charge,
+                        Double.parseDouble(f[2].trim()), Double.parseDouble(f[3].trim()),
+                        vx, vy);
+            } catch (IllegalArgumentException ex) {
+                throw new IOException("line " + number + ": " + ex.getMessage(), ex);
+            }
+        }
+    }
+
+    /**
+     * Writes particles in CSV form
+     * @param w Where to write the CSV
+     * @param store The particles to write
+     * @throws IOException If the CSV cannot be written
+     */
+    public static void writeParticles(BufferedWriter w, ParticleStore store) throws IOException {
+        w.write("# mass,charge,x,y,vx,vy");
+        w.newLine();
+        for (int i = 0; i < store.size(); i++) {
+            w.write(store.getMass(i) + "," + store.getCharge(i) + ","
+                    + store.getX(i) + "," + store.getY(i) + ","
+                    + store.getVx(i) + "," + store.getVy(i));
+            w.newLine();
+        }
+        w.flush();
+    }
+}
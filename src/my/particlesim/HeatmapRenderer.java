@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2014 Rowan Phipps
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package my.particlesim;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Draws where the mass and charge are instead of drawing every particle.
+ *
+ * Every particle adds its mass, its charge and one to the count of the pixel
+ * its centre is in.  The brightness of a pixel is the log of the mass in it
+ * over the log of the most mass in any pixel, so a lone particle still shows
+ * up next to a dense cluster, and the colour is the colour of the average
+ * charge in the pixel, the same white, red and blue particles are drawn in.
+ *
+ * Like RasterRenderer the image is split into bands of rows that are filled
+ * in parallel, and the particles are sorted into the band their centre is in
+ * first.  Each particle is only touched a few times and never drawn bigger
+ * than a pixel, so a frame costs about as much as clearing the image plus a
+ * handful of adds per particle, however big the particles are.
+ * @author rowan
+ */
+public class HeatmapRenderer {
+    private static final int BAND_HEIGHT = 64;
+    private static final double[] LOGS = new double[4096];  // log1p of small masses
+    static {
+        for (int m = 0; m < LOGS.length; m++) {
+            LOGS[m] = Math.log1p(m);
+        }
+    }
+    // always all zero between frames
+    private float[] mass = new float[0];
+    private float[] charge = new float[0];
+    private int[] count = new int[0];
+    private int[] bandStart = new int[0];
+    private int[] members = new int[0];
+    private float[] bandMax = new float[0];
+
+    /**
+     * Draws a snapshot over the whole of an image
+     * @param snap The particles to draw
+     * @param image The image to draw on, must be TYPE_INT_RGB
+     */
+    public void render(Snapshot snap, BufferedImage image) {
+        if (image.getType() != BufferedImage.TYPE_INT_RGB) {
+            throw new IllegalArgumentException("image must be TYPE_INT_RGB");
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        int bands = (height + BAND_HEIGHT - 1) / BAND_HEIGHT;
+        if (mass.length < width * height) {
+            mass = new float[width * height];
+            charge = new float[width * height];
+            count = new int[width * height];
+        }
+        if (bandMax.length < bands) {
+            bandMax = new float[bands];
+        }
+        this.sortIntoBands(snap, bands, width, height);
+
+        IntStream.range(0, bands).parallel().forEach((b) -> {
+            float max = 0;
+            for (int m = bandStart[b]; m < bandStart[b + 1]; m++) {
+                int i = members[m];
+                int p = pixel(snap, i, width);
+                mass[p] += snap.getMass(i);
+                charge[p] += snap.getCharge(i);
+                count[p]++;
+                max = Math.max(max, mass[p]);
+            }
+            bandMax[b] = max;
+        });
+
+        float max = 0;
+        for (int b = 0; b < bands; b++) {
+            max = Math.max(max, bandMax[b]);
+        }
+        double scale = max > 0 ? 1 / Math.log1p(max) : 0;
+        IntStream.range(0, bands).parallel().forEach((b) -> {
+            int from = b * BAND_HEIGHT * width;
+            int to = Math.min((b + 1) * BAND_HEIGHT, height) * width;
+            Arrays.fill(pixels, from, to, 0);
+            // only the pixels with particles in them need colouring
+            for (int k = bandStart[b]; k < bandStart[b + 1]; k++) {
+                int p = pixel(snap, members[k], width);
+                if (count[p] == 0) {
+                    continue;   // already coloured
+                }
+                float m = mass[p];
+                double v = (m >= 0 && m < LOGS.length ? LOGS[(int) m] : Math.log1p(m)) * scale;
+                int q = Math.round(charge[p] / count[p]);
+                // leave the pixel empty for the next frame
+                mass[p] = 0;
+                charge[p] = 0;
+                count[p] = 0;
+                int rgb = Snapshot.rgb(q);
+                int r = (int) ((rgb >> 16 & 0xFF) * v);
+                int g = (int) ((rgb >> 8 & 0xFF) * v);
+                int bl = (int) ((rgb & 0xFF) * v);
+                pixels[p] = r << 16 | g << 8 | bl;
+            }
+        });
+    }
+
+    /**
+     * Groups the particles that are on the image by the band their centre is
+     * in with a counting sort
+     */
+    private void sortIntoBands(Snapshot snap, int bands, int width, int height) {
+        if (bandStart.length < bands + 1) {
+            bandStart = new int[bands + 1];
+        }
+        Arrays.fill(bandStart, 0, bands + 1, 0);
+        int n = snap.size();
+        int total = 0;
+        for (int i = 0; i < n; i++) {
+            int b = band(snap, i, width, height);
+            if (b >= 0) {
+                bandStart[b + 1]++;
+                total++;
+            }
+        }
+        for (int b = 0; b < bands; b++) {
+            bandStart[b + 1] += bandStart[b];
+        }
+        if (members.length < total) {
+            members = new int[Math.max(total, members.length + (members.length >> 1))];
+        }
+        int[] fill = Arrays.copyOf(bandStart, bands);
+        for (int i = 0; i < n; i++) {
+            int b = band(snap, i, width, height);
+            if (b >= 0) {
+                members[fill[b]++] = i;
+            }
+        }
+    }
+
+    private static int pixel(Snapshot snap, int i, int width) {
+        return (int) snap.getY(i) * width + (int) snap.getX(i);
+    }
+
+    /**
+     * Returns the band the centre of a particle is in, or -1 if it is off
+     * the image
+     */
+    private static int band(Snapshot snap, int i, int width, int height) {
+        double x = snap.getX(i);
+        double y = snap.getY(i);
+        if (!(x >= 0 && x < width && y >= 0 && y < height)) {
+            return -1;
+        }
+        return (int) y / BAND_HEIGHT;
+    }
+}
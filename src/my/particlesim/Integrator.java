@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2014 Rowan Phipps
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package my.particlesim;
+
+/**
+ * Moves the particles forward by one step given a way to work out the forces
+ * on them.
+ *
+ * Collisions are not forces that can be worked out from the positions alone,
+ * so they are handed to the integrator separately and it applies them as a
+ * kick to the velocities at whatever point in the step suits it.  Moving the
+ * particles is handed over too, as a Drift, so that walls and continuous
+ * collisions can be handled while the particles move.
+ * @author rowan
+ */
+public interface Integrator {
+
+    /**
+     * Works out the forces on every particle where they are now
+     */
+    @FunctionalInterface
+    interface Forces {
+        /**
+         * Fills in the force on each particle
+         * @param fx The x component of the force on each particle
+         * @param fy The y component of the force on each particle
+         */
+        void compute(double[] fx, double[] fy);
+
+        /**
+         * Fills in the force on some of the particles.  By default this works
+         * out the forces on all of them.
+         * @param targets The indexes of the particles that need forces
+         * @param count The number of targets
+         * @param fx The x component of the force on each particle
+         * @param fy The y component of the force on each particle
+         */
+        default void compute(int[] targets, int count, double[] fx, double[] fy) {
+            this.compute(fx, fy);
+        }
+    }
+
+    /**
+     * Moves every particle along its velocity
+     */
+    @FunctionalInterface
+    interface Drift {
+        /**
+         * Moves every particle for a length of time
+         * @param dt How long to move for
+         */
+        void drift(double dt);
+    }
+
+    /**
+     * Advances the particles by one step
+     * @param s The particles
+     * @param T The physics delta t
+     * @param width The width of the world
+     * @param height The height of the world
+     * @param forces Works out the forces on the particles
+     * @param drift Moves the particles
+     * @param collisions Collides touching particles, or null if collisions
+     * are turned off
+     */
+    void step(ParticleStore s, double T, int width, int height,
+            Forces forces, Drift drift, Runnable collisions);
+
+    /**
+     * Forgets anything kept from the last step because the particles or the
+     * forces have changed in a way the integrator cannot see
+     */
+    default void reset() {
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2014 Rowan Phipps
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package my.particlesim;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts how long something took in buckets that get wider as the times get
+ * longer, the same idea as HdrHistogram.
+ *
+ * Every power of two is split into 16 buckets, so any time is counted to
+ * within about 6% and the whole range of a long fits in under a thousand
+ * buckets.  Recording is a couple of atomic adds with no allocation, so it is
+ * cheap enough to do on every step, and another thread can read the
+ * percentiles while it is being recorded to.
+ * @author rowan
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Returns the bucket a value is counted in.  Values under 2 * SUB have a
+     * bucket each, above that the bucket is the position of the top bit and
+     * the SUB_BITS bits after it.
+     */
+    private static int bucketOf(long v) {
+        if (v < 2 * SUB) {
+            return (int) v;
+        }
+        int top = 63 - Long.numberOfLeadingZeros(v);
+        int shift = top - SUB_BITS;
+        return shift * SUB + (int) (v >>> shift);
+    }
+
+    /**
+     * Returns the value in the middle of a bucket
+     */
+    private static long middleOf(int bucket) {
+        if (bucket < 2 * SUB) {
+            return bucket;
+        }
+        int shift = bucket / SUB - 1;
+        long lowest = (long) (bucket % SUB + SUB) << shift;
+        return lowest + (1L << shift) / 2;
+    }
+
+    /**
+     * Counts one time
+     * @param nanos The time in nanoseconds, negative times count as 0
+     */
+    public void record(long nanos) {
+        long v = Math.max(nanos, 0);
+        counts.incrementAndGet(bucketOf(v));
+        count.incrementAndGet();
+        total.addAndGet(v);
+        if (v > max.get()) {
+            max.accumulateAndGet(v, Math::max);
+        }
+    }
+
+    /**
+     * Returns the number of times recorded
+     * @return The count
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Returns the mean of the times recorded
+     * @return The mean in nanoseconds, 0 if nothing has been recorded
+     */
+    public double getMean() {
+        long c = count.get();
+        return c == 0 ? 0 : (double) total.get() / c;
+    }
+
+    /**
+     * Returns the longest time recorded, exactly
+     * @return The longest time in nanoseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the time that a given fraction of the times were at or under
+     * @param fraction From 0 to 1, 0.99 for the 99th percentile
+     * @return The time in nanoseconds, to within the width of its bucket
+     */
+    public long getPercentile(double fraction) {
+        long c = count.get();
+        if (c == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * c));
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += counts.get(b);
+            if (seen >= rank) {
+                return Math.min(middleOf(b), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Forgets everything recorded so far
+     */
+    public void reset() {
+        for (int b = 0; b < BUCKETS; b++) {
+            counts.set(b, 0);
+        }
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+}
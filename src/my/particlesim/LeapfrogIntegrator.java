@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2014 Rowan Phipps
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package my.particlesim;
+
+/**
+ * Leapfrog in drift, kick, drift form.
+ * The particles drift for half a step, the velocities are kicked by the
+ * forces at that midpoint, and the particles drift the other half.  It is
+ * second order and time reversible like Velocity Verlet but keeps nothing
+ * between steps, so particles can be added or changed freely.  Collisions
+ * are applied along with the kick.
+ * @author rowan
+ */
+public class LeapfrogIntegrator implements Integrator {
+    private double[] fx = new double[0];
+    private double[] fy = new double[0];
+
+    @Override
+    public void step(ParticleStore s, double T, int width, int height,
+            Forces forces, Drift drift, Runnable collisions) {
+        int n = s.size();
+        if (fx.length < n) {
+            fx = new double[Math.max(n, fx.length * 2)];
+            fy = new double[fx.length];
+        }
+        double half = T / 2;
+        drift.drift(half);
+        forces.compute(fx, fy);
+        for (int i = 0; i < n; i++) {
+            Physics.applyForce(s, i, fx[i], fy[i], T);
+        }
+        if (collisions != null) {
+            collisions.run();
+        }
+        drift.drift(half);
+    }
+}
@@ -18,52 +18,242 @@
 package my.particlesim;
 
 import java.awt.Color;
+import java.awt.Font;
 import java.awt.Graphics;
-import java.awt.Image;
 import java.awt.image.BufferedImage;
-import java.util.ArrayList;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.function.Consumer;
 
 /**
+ * Draws a simulation.
+ * The physics runs on its own thread once startPhysics is called.  That
+ * thread publishes snapshots through a SnapshotBuffer and the canvas only ever
+ * draws the latest one, so painting never waits on the physics.
  *
+ * With a lot of particles drawing every disc is wasted work, so the canvas
+ * can draw in less detail: small particles as single pixels, or a heatmap of
+ * where the mass and charge are, which never draws more than a pixel for a
+ * particle however big it is.  In AUTO it picks the level of detail itself.  It
+ * draws a heatmap once there is a particle for every few pixels, and
+ * otherwise drops a level whenever drawing takes more than half of the time
+ * between frames.  It only goes back up once the number of particles has
+ * halved since it came down, so it does not flicker between two levels.
  * @author rowan
  */
 public class MyCanvas extends java.awt.Canvas {
-    private ArrayList<Particle> particles = new ArrayList<>();
-    private Image buffer = null;
+    /**
+     * How much detail particles are drawn with
+     */
+    public enum RenderMode {
+        DISCS, PIXELS, HEATMAP, AUTO
+    }
+    
+    private static final int POINT_SIZE = 4;          // biggest particle drawn as a pixel
+    private static final int PIXELS_PER_PARTICLE = 4;  // fewer than this draws a heatmap
+    private final Simulation sim = new Simulation(0, 0);
+    private SimulationThread physics = null;
+    private final SnapshotBuffer snapshots = new SnapshotBuffer();
+    private final SpriteAtlas atlas = SpriteAtlas.shared();
+    private final RasterRenderer renderer = new RasterRenderer();
+    private final HeatmapRenderer heatmap = new HeatmapRenderer();
+    private RenderMode renderMode = RenderMode.AUTO;
+    private RenderMode detail = RenderMode.DISCS;   // what AUTO is drawing with
+    private final int[] enteredAt = new int[3];     // particles when AUTO dropped to each level
+    private double renderNanos = 0;     // recent average time to draw
+    private boolean raster = true;
+    private BufferedImage buffer = null;
     private int width = 0;
     private int height = 0;
     private Graphics buffG;
+    private TrajectoryRecorder recorder = null;
+    private final StepMetrics metrics = new StepMetrics();
+    private boolean overlay = false;
+    private long frameNanos = 16_000_000L;
+    private long lastFrame = 0;
+    
+    public MyCanvas() {
+        sim.setMetrics(metrics);
+    }
     
     /**
-     * Paints the particles to the screen
+     * Paints the particles to the back buffer.
+     * Normally the pixels are written straight into the buffer by a
+     * RasterRenderer, otherwise each particle is drawn with g from the
+     * shared SpriteAtlas.  Pixels and heatmaps are always written straight
+     * into the buffer.
      */
     @Override
     public void paint(Graphics g) {
+        Snapshot snap = snapshots.acquire();
+        long start = System.nanoTime();
+        RenderMode mode = this.renderMode == RenderMode.AUTO ? this.chooseDetail(snap.size()) : this.renderMode;
+        if (mode == RenderMode.HEATMAP) {
+            heatmap.render(snap, buffer);
+        }
+        else if (mode == RenderMode.PIXELS || this.raster) {
+            renderer.setPointSize(mode == RenderMode.PIXELS ? POINT_SIZE : 0);
+            renderer.render(snap, buffer);
+        }
+        else {
 //        this.buffer.getGraphics();
-        this.buffG.setColor(Color.BLACK);
-        this.buffG.fillRect(0, 0, width, height);
-        particles.stream().forEach((p) -> {
-            p.draw(g);
-        });
+            this.buffG.setColor(Color.BLACK);
+            this.buffG.fillRect(0, 0, width, height);
+            for (int i = 0; i < snap.size(); i++) {
+                atlas.draw(g, snap.getSize(i), snap.getRgb(i), (int) snap.getX(i), (int) snap.getY(i));
+            }
+        }
+        this.renderNanos += (System.nanoTime() - start - this.renderNanos) / 8;
+    }
+    
+    /**
+     * Picks the level of detail for AUTO
+     * @param n The number of particles to draw
+     * @return DISCS, PIXELS or HEATMAP
+     */
+    private RenderMode chooseDetail(int n) {
+        int crowded = Math.max(width * height, 1) / PIXELS_PER_PARTICLE;
+        RenderMode next = this.detail;
+        if (n >= crowded) {
+            next = RenderMode.HEATMAP;
+        }
+        else if (this.renderNanos > this.frameNanos / 2 && this.detail != RenderMode.HEATMAP) {
+            next = RenderMode.values()[this.detail.ordinal() + 1];
+        }
+        else if (this.detail != RenderMode.DISCS && n < this.enteredAt[this.detail.ordinal()] / 2) {
+            next = RenderMode.values()[this.detail.ordinal() - 1];
+        }
+        if (next != this.detail) {
+            if (next.ordinal() > this.detail.ordinal()) {
+                this.enteredAt[next.ordinal()] = n;
+            }
+            this.detail = next;
+            this.renderNanos = 0;
+        }
+        return this.detail;
+    }
+    
+    /**
+     * Sets how much detail particles are drawn with
+     * @param mode The level of detail, or AUTO to pick it from the number of
+     * particles and how long drawing takes
+     */
+    public void setRenderMode(RenderMode mode) {
+        this.renderMode = mode;
+    }
+    
+    public RenderMode getRenderMode() {
+        return this.renderMode;
+    }
+    
+    /**
+     * Returns the level of detail the last frame was drawn with
+     * @return DISCS, PIXELS or HEATMAP
+     */
+    public RenderMode getRenderDetail() {
+        return this.renderMode == RenderMode.AUTO ? this.detail : this.renderMode;
     }
     
     /**
-     * Updates physics for all of the particles.
+     * Sets whether particles are drawn by writing pixels directly, which is
+     * much faster, or through Graphics
+     * @param raster True to write pixels directly
+     */
+    public void setRasterRendering(boolean raster) {
+        this.raster = raster;
+    }
+    
+    /**
+     * Starts running the physics on a thread of its own
+     * @param deltaT The real time between steps in milliseconds
+     */
+    public void startPhysics(int deltaT) {
+        if (this.physics == null) {
+            this.physics = new SimulationThread(sim, deltaT, snapshots);
+            try {
+                metrics.register("canvas");
+            } catch (IllegalStateException ex) {
+                // another canvas already has the name, the overlay still works
+            }
+        }
+        this.physics.start();
+    }
+    
+    /**
+     * Sets which forces the physics thread simulates
+     * @param gravity Sets whether or not to simulate gravity
+     * @param electro Sets whether or not to simulate electrostatic forces 
+     * @param collision Sets whether or not particles collide
+     */
+    public void setForces(boolean gravity, boolean electro, boolean collision) {
+        if (this.physics != null) {
+            this.physics.setForces(gravity, electro, collision);
+        }
+    }
+    
+    /**
+     * Updates physics for all of the particles on the calling thread.
+     * This must not be used once startPhysics has been called.
      * @param deltaT Physics delta t
      * @param gravity Sets whether or not to simulate gravity
      * @param electro Sets whether or not to simulate electrostatic forces 
      * @param collision Sets whether or not particles collide
      */
     public void updatePhysics(int deltaT, boolean gravity, boolean electro, boolean collision) {
-        particles.parallelStream().forEach((p) -> {
-            p.update(particles, deltaT, this.getWidth(), this.getHeight(),
-                    gravity, electro, collision);
-        });
-        particles.stream().forEach((p) -> {
-            p.move(this.getWidth(), this.getHeight());
-        });
+        if (this.physics != null) {
+            throw new IllegalStateException("the physics thread is running");
+        }
+        sim.setSize(this.getWidth(), this.getHeight());
+        sim.step(1.0 / deltaT, gravity, electro, collision);
+        snapshots.publish(sim.getParticles(), sim.getSteps());
     } 
     
+    /**
+     * Runs a change to the simulation between two steps.  If the physics
+     * thread is not running it happens straight away.
+     * @param task The change to make
+     */
+    public void invokeLater(Consumer<Simulation> task) {
+        if (this.physics != null) {
+            this.physics.invokeLater(task);
+        }
+        else {
+            task.accept(sim);
+            snapshots.publish(sim.getParticles(), sim.getSteps());
+        }
+    }
+    
+    /**
+     * Starts recording every step to a file, stopping any recording that was
+     * already going
+     * @param file The file to record to
+     * @throws IOException If the file cannot be created
+     */
+    public void startRecording(Path file) throws IOException {
+        this.stopRecording();
+        TrajectoryRecorder r = new TrajectoryRecorder(file);
+        this.recorder = r;
+        this.invokeLater((s) -> {
+            s.setRecorder(r);
+        });
+    }
+    
+    /**
+     * Stops recording and finishes writing the file
+     * @throws IOException If the recording could not be written
+     */
+    public void stopRecording() throws IOException {
+        if (this.recorder != null) {
+            this.invokeLater((s) -> {
+                s.setRecorder(null);
+            });
+            // anything recorded after this is ignored so it does not matter
+            // if the physics thread gets one more step in first
+            this.recorder.close();
+            this.recorder = null;
+        }
+    }
+    
     /**
      * Updates graphics
      * @param g Graphics context
@@ -75,31 +265,143 @@ public class MyCanvas extends java.awt.Canvas {
             this.height = this.getHeight();
             this.buffer = new BufferedImage(this.getWidth(), this.getHeight(), BufferedImage.TYPE_INT_RGB);
             this.buffG = this.buffer.getGraphics();
+            int w = this.width;
+            int h = this.height;
+            this.invokeLater((s) -> {
+                s.setSize(w, h);
+            });
         }
         
+        long start = System.nanoTime();
         this.paint(buffG);
+        if (this.overlay) {
+            this.drawMetrics();
+        }
         g.drawImage(buffer, 0, 0, this);        
+        long end = System.nanoTime();
+        metrics.frameDone(end - start, lastFrame != 0 && start - lastFrame > frameNanos * 3 / 2);
+        lastFrame = start;
+    }
+    
+    private void drawMetrics() {
+        this.buffG.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        this.buffG.setColor(Color.WHITE);
+        int line = this.buffG.getFontMetrics().getHeight();
+        int y = line;
+        for (String s : metrics.describe()) {
+            this.buffG.drawString(s, 4, y);
+            y += line;
+        }
+        this.buffG.drawString("detail     " + this.getRenderDetail()
+                + (this.renderMode == RenderMode.AUTO ? " (auto)" : ""), 4, y);
+    }
+    
+    /**
+     * Sets how often frames are meant to be drawn, so frames that come late
+     * can be counted
+     * @param millis The time between frames in milliseconds
+     */
+    public void setTargetFrameMillis(int millis) {
+        this.frameNanos = millis * 1_000_000L;
+    }
+    
+    /**
+     * Sets whether the step and frame timings are drawn over the particles
+     * @param overlay True to draw them
+     */
+    public void setMetricsOverlay(boolean overlay) {
+        this.overlay = overlay;
+    }
+    
+    public boolean isMetricsOverlay() {
+        return this.overlay;
+    }
+    
+    /**
+     * Returns the timings of the steps and frames
+     * @return The metrics
+     */
+    public StepMetrics getMetrics() {
+        return this.metrics;
     }
     
     /**
      * Adds a particle to the canvas
      */
     public void add (Particle part) {
-        part.setId(this.particles.size());
-        this.particles.add(part);
+        this.invokeLater((s) -> {
+            part.attach(s.getParticles());
+        });
+    }
+    
+    /**
+     * Removes a particle from the canvas
+     */
+    public void remove (Particle part) {
+        this.invokeLater((s) -> {
+            s.remove(part.getHandle());
+        });
+    }
+    
+    /**
+     * Sets whether particles that leave the canvas are removed instead of
+     * bouncing off its edges
+     * @param open True to remove particles that leave
+     */
+    public void setOpenBoundaries(boolean open) {
+        this.invokeLater((s) -> {
+            s.setOpenBoundaries(open);
+        });
+    }
+    
+    /**
+     * Sets whether touching particles merge into one instead of bouncing
+     * @param merging True to merge touching particles
+     */
+    public void setMerging(boolean merging) {
+        this.invokeLater((s) -> {
+            s.setMerging(merging);
+        });
+    }
+    
+    /**
+     * Adds a whole scenario of particles to the canvas at once
+     * @param scenario How to make the particles
+     * @param n The number of particles to make
+     */
+    public void generate(Scenario scenario, int n) {
+        this.invokeLater((s) -> {
+            scenario.generate(s.getParticles(), n,
+                    Math.max(s.getWidth(), 1), Math.max(s.getHeight(), 1));
+        });
+    }
+    
+    /**
+     * Sets whether the simulation is reproducible step for step, see
+     * Simulation.setDeterministic
+     * @param deterministic True to make it reproducible
+     */
+    public void setDeterministic(boolean deterministic) {
+        this.invokeLater((s) -> {
+            s.setDeterministic(deterministic);
+        });
     }
     
     /**
      * Removes all particles from the canvas
      */
     public void clear () {
-        this.particles = new ArrayList<>();
+        this.invokeLater((s) -> {
+            s.clear();
+        });
     }
     
     /**
      * Prints the current number of particles to standard out
      */
     public void log() {
-        System.out.println(particles.size());
+        this.invokeLater((s) -> {
+            System.out.println(s.getParticles().size());
+        });
     }
 }
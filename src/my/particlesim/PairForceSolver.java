@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2014 Rowan Phipps
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package my.particlesim;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Calculates the exact forces between every pair of particles in parallel
+ * without any two threads writing to the same memory.
+ *
+ * Like Physics.update each pair is only worked out once, pairs that are
+ * touching are left out, and the force is applied to both particles.  The rows of the pair matrix are split into a
+ * fixed number of chunks that each have about the same number of pairs.
+ * Every chunk adds its forces into a buffer of its own, and the buffers are
+ * then added together in chunk order.  Because the chunks do not depend on
+ * how many threads there are the result is the same on any machine.
+ * @author rowan
+ */
+public class PairForceSolver implements ForceSolver {
+    private static final int DEFAULT_CHUNKS = 32;
+    private final int chunks;
+    int[] rowStart;         // first row of each chunk
+    double[][] bufX;        // forces from each chunk, starting at its first row
+    double[][] bufY;
+
+    /**
+     * Creates a solver that splits the work into 32 chunks
+     */
+    public PairForceSolver() {
+        this(DEFAULT_CHUNKS);
+    }
+
+    /**
+     * Creates a solver that splits the work into a given number of chunks.
+     * More chunks can use more threads but need more memory, each chunk
+     * needs a buffer up to the size of the number of particles.
+     * @param chunks The number of chunks
+     */
+    public PairForceSolver(int chunks) {
+        if (chunks < 1) {
+            throw new IllegalArgumentException("chunks must be positive: " + chunks);
+        }
+        this.chunks = chunks;
+        this.rowStart = new int[chunks + 1];
+        this.bufX = new double[chunks][0];
+        this.bufY = new double[chunks][0];
+    }
+
+    @Override
+    public boolean isDeterministic() {
+        return true;
+    }
+
+    @Override
+    public void computeForces(ParticleStore particles, int width, int height,
+            double[] fx, double[] fy,
+            boolean gravity, boolean electro, boolean collision) {
+        int n = particles.size();
+        this.split(n);
+
+        IntStream.range(0, chunks).parallel().forEach((c) -> {
+            this.accumulate(particles, c, gravity, electro);
+        });
+
+        // adding the buffers up in the same order every time keeps the
+        // rounding the same
+        IntStream.range(0, n).parallel().forEach((j) -> {
+            double sumX = 0;
+            double sumY = 0;
+            for (int c = 0; c < chunks && rowStart[c] <= j; c++) {
+                if (rowStart[c] < rowStart[c + 1]) {
+                    sumX += bufX[c][j - rowStart[c]];
+                    sumY += bufY[c][j - rowStart[c]];
+                }
+            }
+            fx[j] = sumX;
+            fy[j] = sumY;
+        });
+    }
+
+    /**
+     * Splits the rows of the pair matrix into chunks with close to the same
+     * number of pairs.  Row i has n - 1 - i pairs in it so the early chunks
+     * get fewer rows.
+     * @param n The number of particles
+     */
+    private void split(int n) {
+        long total = (long) n * (n - 1) / 2;
+        long done = 0;
+        int row = 0;
+        rowStart[0] = 0;
+        for (int c = 1; c < chunks; c++) {
+            long target = total * c / chunks;
+            while (row < n && done < target) {
+                done += n - 1 - row;
+                row++;
+            }
+            rowStart[c] = row;
+        }
+        rowStart[chunks] = n;
+
+        // a chunk only touches the particles from its first row onward
+        for (int c = 0; c < chunks; c++) {
+            int len = n - rowStart[c];
+            if (bufX[c].length < len) {
+                bufX[c] = new double[len];
+                bufY[c] = new double[len];
+            }
+        }
+    }
+
+    /**
+     * Works out every pair in one chunk of rows and adds the forces into the
+     * buffer for that chunk
+     */
+    void accumulate(ParticleStore s, int chunk, boolean gravity, boolean electro) {
+        int first = rowStart[chunk];
+        int last = rowStart[chunk + 1];
+        if (first == last) {
+            return;
+        }
+        int n = s.size();
+        double[] bx = bufX[chunk];
+        double[] by = bufY[chunk];
+        Arrays.fill(bx, 0, n - first, 0);
+        Arrays.fill(by, 0, n - first, 0);
+
+        double gm = gravity ? -Physics.g : 0;
+        double kq = electro ? Physics.k : 0;
+        for (int i = first; i < last; i++) {
+            double x = s.x[i];
+            double y = s.y[i];
+            double m = s.mass[i];
+            double q = s.charge[i];
+            int size = s.size[i];
+            double sumX = 0;
+            double sumY = 0;
+            for (int j = i + 1; j < n; j++) {
+                double dx = x - s.x[j];
+                double dy = y - s.y[j];
+                double d2 = dx * dx + dy * dy;
+                if (d2 == 0 || Math.sqrt(d2) <= (size + s.size[j]) / 2) {
+                    continue;
+                }
+                double coef = (gm * m * s.mass[j] + kq * q * s.charge[j]) / d2;
+                double px = dx * coef;
+                double py = dy * coef;
+                sumX += px;
+                sumY += py;
+                bx[j - first] -= px;
+                by[j - first] -= py;
+            }
+            bx[i - first] += sumX;
+            by[i - first] += sumY;
+        }
+    }
+}
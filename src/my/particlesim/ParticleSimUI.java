@@ -19,6 +19,8 @@ package my.particlesim;
 
 import java.awt.Graphics;
 import java.awt.event.ActionEvent;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
 import javax.swing.Timer;
 
 /**
@@ -28,6 +30,7 @@ import javax.swing.Timer;
 public class ParticleSimUI extends javax.swing.JFrame {
     private static final int fps = 16;   // milliseconds
     private static final int PhysDt = 1; // 1milliseconds
+    private static final int SCENARIO_SIZE = 2000;
 
     /**
      * Creates new form ParticleSimUI
@@ -35,25 +38,41 @@ public class ParticleSimUI extends javax.swing.JFrame {
     public ParticleSimUI() {
         initComponents();
 
-        // physics timer
-        Timer t;
-        t = new Timer(PhysDt, (ActionEvent evt) -> {
-            Graphics g = worldSpace.getGraphics();
-            worldSpace.updatePhysics(PhysDt, gravitySelect.isSelected(),
-                    electroSelect.isSelected(), collisionSelect.isSelected()
-            );
+        // m shows where the time goes, d changes the detail, 1 to 5 add a scenario
+        worldSpace.setTargetFrameMillis(fps);
+        worldSpace.addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyTyped(KeyEvent evt) {
+                char c = evt.getKeyChar();
+                if (c == 'm') {
+                    worldSpace.setMetricsOverlay(!worldSpace.isMetricsOverlay());
+                }
+                else if (c == 'd') {
+                    MyCanvas.RenderMode[] modes = MyCanvas.RenderMode.values();
+                    worldSpace.setRenderMode(modes[(worldSpace.getRenderMode().ordinal() + 1) % modes.length]);
+                }
+                else if (c >= '1' && c < '1' + Scenario.Kind.values().length) {
+                    Scenario scenario = new Scenario(Scenario.Kind.values()[c - '1']);
+                    scenario.setSeed(System.nanoTime());
+                    worldSpace.generate(scenario, SCENARIO_SIZE);
+                }
+            }
         });
 
+        // physics runs on its own thread so it never holds up painting
+        worldSpace.startPhysics(PhysDt);
+
         // graphics timer
         Timer tg;
         tg = new Timer(fps, (ActionEvent evt) -> {
+            worldSpace.setForces(gravitySelect.isSelected(),
+                    electroSelect.isSelected(), collisionSelect.isSelected()
+            );
             Graphics g = worldSpace.getGraphics();
             worldSpace.update(g);
         });
 
         tg.start();
-
-        t.start();
     }
 
     /**
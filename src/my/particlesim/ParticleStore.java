@@ -0,0 +1,449 @@
+/*
+ * Copyright (C) 2014 Rowan Phipps
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package my.particlesim;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * Holds the state of a set of particles in parallel arrays.
+ * Particle i is made up of element i of every array.  Keeping each value in
+ * its own primitive array means the physics loops read straight through
+ * memory instead of following a reference to every particle.
+ *
+ * The arrays are package visible so the physics code can use them directly.
+ * They may be longer than the number of particles, only the first size()
+ * elements are in use.
+ *
+ * Removing a particle moves others into its place so the particles in use
+ * always stay packed at the front of the arrays, which means the index of a
+ * particle can change.  Every particle also gets a handle when it is added
+ * that keeps pointing at it wherever it moves.  Once the particle is removed
+ * the handle is dead for good, even though the slot it came from in the
+ * handle table is used again.
+ * @author rowan
+ */
+public class ParticleStore {
+    private static final int DEFAULT_CAPACITY = 16;
+    private int count = 0;
+    double[] x;
+    double[] y;
+    double[] vx;
+    double[] vy;
+    double[] dx;    // displacement applied on the next move
+    double[] dy;
+    short[] mass;
+    short[] charge;
+    short[] size;   // diameter
+    private int[] entry;    // handle table entry of each particle
+
+    // the handle table, where a handle is an entry and the generation of it
+    private int[] entryIndex = new int[DEFAULT_CAPACITY];   // or the next free entry
+    private int[] entryGeneration = new int[DEFAULT_CAPACITY];
+    private int entries = 0;
+    private int freeEntry = -1;
+    private int modCount = 0;
+
+    /**
+     * Creates an empty store
+     */
+    public ParticleStore() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates an empty store with room for a number of particles
+     * @param capacity The number of particles to make room for
+     */
+    public ParticleStore(int capacity) {
+        this.allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        x = new double[capacity];
+        y = new double[capacity];
+        vx = new double[capacity];
+        vy = new double[capacity];
+        dx = new double[capacity];
+        dy = new double[capacity];
+        mass = new short[capacity];
+        charge = new short[capacity];
+        size = new short[capacity];
+        entry = new int[capacity];
+    }
+
+    /**
+     * Adds a particle at rest
+     * @param mass The mass of the particle
+     * @param charge The charge of the particle
+     * @param x The initial x location of the particle
+     * @param y The initial y location of the particle
+     * @return The index of the new particle
+     */
+    public int add(int mass, int charge, double x, double y) {
+        return this.add(mass, charge, x, y, 0, 0);
+    }
+
+    /**
+     * Adds a particle
+     * @param mass The mass of the particle
+     * @param charge The charge of the particle
+     * @param x The initial x location of the particle
+     * @param y The initial y location of the particle
+     * @param vx The initial x velocity of the particle
+     * @param vy The initial y velocity of the particle
+     * @return The index of the new particle
+     */
+    public int add(int mass, int charge, double x, double y, double vx, double vy) {
+        this.ensureCapacity(count + 1);
+        int i = count++;
+        this.x[i] = x;
+        this.y[i] = y;
+        this.vx[i] = vx;
+        this.vy[i] = vy;
+        this.dx[i] = 0;
+        this.dy[i] = 0;
+        this.mass[i] = (short) mass;
+        this.charge[i] = (short) charge;
+        this.size[i] = sizeOf(mass);
+        this.entry[i] = this.newEntry(i);
+        modCount++;
+        return i;
+    }
+
+    /**
+     * Adds a block of particles at once.  This is much faster than adding
+     * them one at a time when there are a lot of them, the values are copied
+     * straight into the arrays.
+     * @param mass The masses of the particles
+     * @param charge The charges of the particles
+     * @param x The initial x locations of the particles
+     * @param y The initial y locations of the particles
+     * @param vx The initial x velocities of the particles, or null for at rest
+     * @param vy The initial y velocities of the particles, or null for at rest
+     * @param n The number of particles to add from the start of the arrays
+     * @return The index of the first new particle
+     */
+    public int addAll(short[] mass, short[] charge, double[] x, double[] y,
+            double[] vx, double[] vy, int n) {
+        this.ensureCapacity(count + n);
+        int first = count;
+        System.arraycopy(x, 0, this.x, first, n);
+        System.arraycopy(y, 0, this.y, first, n);
+        if (vx != null) {
+            System.arraycopy(vx, 0, this.vx, first, n);
+            System.arraycopy(vy, 0, this.vy, first, n);
+        }
+        else {
+            Arrays.fill(this.vx, first, first + n, 0);
+            Arrays.fill(this.vy, first, first + n, 0);
+        }
+        Arrays.fill(this.dx, first, first + n, 0);
+        Arrays.fill(this.dy, first, first + n, 0);
+        System.arraycopy(mass, 0, this.mass, first, n);
+        System.arraycopy(charge, 0, this.charge, first, n);
+        for (int i = first; i < first + n; i++) {
+            this.size[i] = sizeOf(this.mass[i]);
+            this.entry[i] = this.newEntry(i);
+        }
+        count += n;
+        modCount++;
+        return first;
+    }
+
+    private static short sizeOf(int mass) {
+        return (short) (mass/5 + 1);
+    }
+
+    private int newEntry(int i) {
+        int e = freeEntry;
+        if (e >= 0) {
+            freeEntry = entryIndex[e];
+        }
+        else {
+            if (entries == entryIndex.length) {
+                entryIndex = Arrays.copyOf(entryIndex, entries * 2);
+                entryGeneration = Arrays.copyOf(entryGeneration, entries * 2);
+            }
+            e = entries++;
+        }
+        entryIndex[e] = i;
+        return e;
+    }
+
+    private void freeEntry(int e) {
+        entryGeneration[e]++;
+        entryIndex[e] = freeEntry;
+        freeEntry = e;
+    }
+
+    /**
+     * Returns the handle of a particle, which stays the same when the
+     * particle is moved to another index
+     * @param i The index of the particle
+     * @return The handle
+     */
+    public long handle(int i) {
+        int e = entry[i];
+        return (long) entryGeneration[e] << 32 | e;
+    }
+
+    /**
+     * Finds where a particle is now
+     * @param handle The handle of the particle
+     * @return The index of the particle, or -1 if it has been removed
+     */
+    public int indexOf(long handle) {
+        int e = (int) handle;
+        if (e < 0 || e >= entries || entryGeneration[e] != (int) (handle >>> 32)) {
+            return -1;
+        }
+        return entryIndex[e];
+    }
+
+    /**
+     * Removes a particle in constant time by moving the last particle into
+     * its place
+     * @param i The index of the particle
+     */
+    public void remove(int i) {
+        if (i < 0 || i >= count) {
+            throw new IndexOutOfBoundsException("no particle " + i);
+        }
+        this.freeEntry(entry[i]);
+        count--;
+        if (i != count) {
+            this.move(count, i);
+        }
+        modCount++;
+    }
+
+    /**
+     * Removes every particle that matches a test.  The particles that are
+     * kept stay in the same order, so a store that was sorted for locality
+     * stays sorted.  This is one pass over the store however many are removed.
+     * @param dead Says whether the particle at an index should be removed.
+     * It may only look at that particle, the ones before it may have moved.
+     * @return The number of particles removed
+     */
+    public int removeIf(IntPredicate dead) {
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            if (dead.test(i)) {
+                this.freeEntry(entry[i]);
+            }
+            else {
+                if (kept != i) {
+                    this.move(i, kept);
+                }
+                kept++;
+            }
+        }
+        int removed = count - kept;
+        count = kept;
+        if (removed > 0) {
+            modCount++;
+        }
+        return removed;
+    }
+
+    /**
+     * Merges one particle into another and removes it.  Mass, charge and
+     * momentum are kept and the merged particle sits at the centre of mass,
+     * except that mass and charge are clamped to what fits in a short.
+     * @param i The index of the particle that is kept
+     * @param j The index of the particle that is absorbed
+     * @return The index of the merged particle, which changes if it was the
+     * last one
+     */
+    public int absorb(int i, int j) {
+        this.combine(i, j);
+        long kept = this.handle(i);
+        this.remove(j);
+        return this.indexOf(kept);
+    }
+
+    /**
+     * Adds one particle into another the same way as absorb but leaves the
+     * absorbed particle where it is, for removing many at once afterwards
+     * @param i The index of the particle that is kept
+     * @param j The index of the particle that is absorbed
+     */
+    void combine(int i, int j) {
+        if (i == j) {
+            throw new IllegalArgumentException("a particle cannot absorb itself");
+        }
+        double mi = mass[i];
+        double mj = mass[j];
+        double m = mi + mj;
+        int merged = (int) Math.min(m, Short.MAX_VALUE);
+        x[i] = (mi * x[i] + mj * x[j]) / m;
+        y[i] = (mi * y[i] + mj * y[j]) / m;
+        vx[i] = (mi * vx[i] + mj * vx[j]) / merged;
+        vy[i] = (mi * vy[i] + mj * vy[j]) / merged;
+        dx[i] += dx[j];
+        dy[i] += dy[j];
+        mass[i] = (short) merged;
+        charge[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, charge[i] + charge[j]));
+        size[i] = sizeOf(merged);
+    }
+
+    /**
+     * Moves the particle at one index to another, overwriting it
+     */
+    private void move(int from, int to) {
+        x[to] = x[from];
+        y[to] = y[from];
+        vx[to] = vx[from];
+        vy[to] = vy[from];
+        dx[to] = dx[from];
+        dy[to] = dy[from];
+        mass[to] = mass[from];
+        charge[to] = charge[from];
+        size[to] = size[from];
+        entry[to] = entry[from];
+        entryIndex[entry[to]] = to;
+    }
+
+    /**
+     * Returns a number that changes whenever particles are added or removed,
+     * so anything that keeps results by index can tell they are out of date
+     * @return The modification count
+     */
+    int modCount() {
+        return modCount;
+    }
+
+    /**
+     * Copies a particle from another store into this one
+     * @param other The store to copy from
+     * @param i The index of the particle in the other store
+     * @return The index of the particle in this store
+     */
+    public int add(ParticleStore other, int i) {
+        int j = this.add(other.mass[i], other.charge[i], other.x[i], other.y[i],
+                other.vx[i], other.vy[i]);
+        this.dx[j] = other.dx[i];
+        this.dy[j] = other.dy[i];
+        return j;
+    }
+
+    /**
+     * Makes sure there is room for a number of particles, growing the arrays
+     * by at least half again if there is not
+     * @param capacity The number of particles to make room for
+     */
+    public void ensureCapacity(int capacity) {
+        if (capacity > x.length) {
+            this.resize(Math.max(capacity, x.length + (x.length >> 1) + 1));
+        }
+    }
+
+    /**
+     * Shrinks the arrays down to the number of particles in use.
+     * Used after a lot of particles are removed so that the physics loops do
+     * not drag around memory that is no longer needed.
+     */
+    public void compact() {
+        if (x.length > Math.max(count, DEFAULT_CAPACITY)) {
+            this.resize(Math.max(count, DEFAULT_CAPACITY));
+        }
+    }
+
+    private void resize(int capacity) {
+        x = Arrays.copyOf(x, capacity);
+        y = Arrays.copyOf(y, capacity);
+        vx = Arrays.copyOf(vx, capacity);
+        vy = Arrays.copyOf(vy, capacity);
+        dx = Arrays.copyOf(dx, capacity);
+        dy = Arrays.copyOf(dy, capacity);
+        mass = Arrays.copyOf(mass, capacity);
+        charge = Arrays.copyOf(charge, capacity);
+        size = Arrays.copyOf(size, capacity);
+        entry = Arrays.copyOf(entry, capacity);
+    }
+
+    /**
+     * Removes all of the particles and releases the memory they used.  Their
+     * handles all die.
+     */
+    public void clear() {
+        this.removeAll();
+        this.compact();
+    }
+
+    /**
+     * Removes all of the particles but keeps the memory they used, for when
+     * the store is about to be filled again with about as many.  Their
+     * handles all die.
+     */
+    public void removeAll() {
+        for (int i = 0; i < count; i++) {
+            this.freeEntry(entry[i]);
+        }
+        modCount++;
+        count = 0;
+    }
+
+    /**
+     * Returns the number of particles in the store
+     * @return The number of particles
+     */
+    public int size() {
+        return count;
+    }
+
+    public double getX(int i) {
+        return x[i];
+    }
+
+    public double getY(int i) {
+        return y[i];
+    }
+
+    public double getVx(int i) {
+        return vx[i];
+    }
+
+    public double getVy(int i) {
+        return vy[i];
+    }
+
+    public int getMass(int i) {
+        return mass[i];
+    }
+
+    public int getCharge(int i) {
+        return charge[i];
+    }
+
+    public int getSize(int i) {
+        return size[i];
+    }
+
+    /**
+     * Sets the velocity of a particle
+     * @param i The index of the particle
+     * @param vx x component of velocity
+     * @param vy y component of velocity
+     */
+    public void setV(int i, double vx, double vy) {
+        this.vx[i] = vx;
+        this.vy[i] = vy;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2014 Rowan Phipps
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package my.particlesim;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * A summary of the times taken by one phase of a step, in milliseconds
+ * @author rowan
+ */
+public class PhaseStats {
+    private final long count;
+    private final double mean;
+    private final double median;
+    private final double p99;
+    private final double max;
+
+    /**
+     * Creates a summary
+     * @param count The number of times the phase ran
+     * @param mean The mean time
+     * @param median The median time
+     * @param p99 The 99th percentile
+     * @param max The longest time
+     */
+    @ConstructorProperties({"count", "mean", "median", "p99", "max"})
+    public PhaseStats(long count, double mean, double median, double p99, double max) {
+        this.count = count;
+        this.mean = mean;
+        this.median = median;
+        this.p99 = p99;
+        this.max = max;
+    }
+
+    /**
+     * Summarises a histogram of times in nanoseconds
+     * @param h The histogram
+     * @return The summary
+     */
+    static PhaseStats of(LatencyHistogram h) {
+        return new PhaseStats(h.getCount(), h.getMean() / 1e6,
+                h.getPercentile(0.5) / 1e6, h.getPercentile(0.99) / 1e6, h.getMax() / 1e6);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public double getMedian() {
+        return median;
+    }
+
+    public double getP99() {
+        return p99;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%8.3f mean %8.3f p50 %8.3f p99 %8.3f max ms",
+                mean, median, p99, max);
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2014 Rowan Phipps
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package my.particlesim;
+
+/**
+ * The physics for particles in a ParticleStore.
+ * Note that the universal constants used for the physics calculations do not in
+ * proportion to any actually real world values.  The values for k and g are
+ * many orders of magnitude larger than they should be and one pixel is treated
+ * as one meter.  This is because the numbers were chosen to make the simulation
+ * look interesting rather than accurate.
+ * @author Rowan
+ */
+public final class Physics {
+    static final double k = 0.025;     // coulomb's constant
+    static final double g = 0.0005;    // universal gravitational constant
+    static final double c = 0.6;   // coefficient of restitution for collisions with walls
+    static final double collisionElasticConstant = 0.001;  // co. of r. for collisions with other particles
+    static final double distanceExponent = 0.7;
+
+    private Physics() {
+    }
+
+    /**
+     * Calculates physics for one particle
+     * modifies vx and vy based on electrostatic attraction, gravity and collisions
+     * with every particle after it in the store
+     * @param s The particles
+     * @param i The index of the particle
+     * @param T The physics delta t
+     * @param gravity Sets whether or not to simulate gravity
+     * @param electro Sets whether or not to simulate electrostatic forces
+     * @param collision Sets whether or not particles collide
+     */
+    public static void update(ParticleStore s, int i, double T,
+            boolean gravity, boolean electro, boolean collision) {
+        boolean collided;
+        for (int j = i+1; j < s.size(); j++) {
+            double dx = s.x[i] - s.x[j];
+            double dy = s.y[i] - s.y[j];
+            double d = Math.sqrt(dx * dx + dy * dy);
+            collided = hasCollided(s, i, j, d);
+
+            if (collision && collided) {
+                collide(s, i, j, d, T);
+                collide(s, j, i, d, T);
+            }
+
+            if (gravity && !collided) {
+                doGravity(s, i, j, d, T);
+            }
+            if (electro && !collided) {
+                doElectro(s, i, j, d, T);
+            }
+        }
+    }
+
+    /**
+     * Collides two particles if they are overlapping.
+     * This is the collision half of update for use when the forces have
+     * already been worked out by a ForceSolver.
+     * @param s The particles
+     * @param i The index of the first particle
+     * @param j The index of the second particle
+     * @param T The physics delta t
+     * @return True if the particles collided
+     */
+    public static boolean collideIfTouching(ParticleStore s, int i, int j, double T) {
+        double dx = s.x[i] - s.x[j];
+        double dy = s.y[i] - s.y[j];
+        double d = Math.sqrt(dx * dx + dy * dy);
+        if (hasCollided(s, i, j, d)) {
+            collide(s, i, j, d, T);
+            collide(s, j, i, d, T);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Checks to see if two particles have collided.
+     * This works best at very low speeds and still needs improvement
+     * Does not do any ray tracing
+     * @param s The particles
+     * @param i The index of the first particle
+     * @param j The index of the second particle
+     * @param d The distance between the two particles
+     * @return True if the particles are overlapping
+     */
+    static boolean hasCollided(ParticleStore s, int i, int j, double d) {
+        return (d <= (s.size[i] + s.size[j])/2);
+    }
+
+    /**
+     * Simulates gravity and updates the values vx and vy appropriately
+     * @param s The particles
+     * @param i The index of the first particle
+     * @param j The index of the second particle
+     * @param d The distance between the two particles
+     * @param T The physics delta t
+     */
+    static void doGravity(ParticleStore s, int i, int j, double d, double T) {
+        double fy = g * (s.y[i] - s.y[j]) * (-(s.mass[i] * s.mass[j])
+                / (d * d));
+        double fx = g * (s.x[i] - s.x[j]) * (-(s.mass[i] * s.mass[j])
+                / (d * d));
+
+        applyForce(s, i, fx, fy, T);
+        applyForce(s, j, -fx, -fy, T);
+    }
+
+    /**
+     * Simulates electro static attraction
+     * @param s The particles
+     * @param i The index of the first particle
+     * @param j The index of the second particle
+     * @param d The distance between the two particles
+     * @param T The physics delta t
+     */
+    static void doElectro(ParticleStore s, int i, int j, double d, double T) {
+        double fy = k * (s.y[i] - s.y[j]) * ((s.charge[i] * s.charge[j])
+                / (d * d));
+        double fx = k * (s.x[i] - s.x[j]) * ((s.charge[i] * s.charge[j])
+                / (d * d));
+
+        applyForce(s, i, fx, fy, T);
+        applyForce(s, j, -fx, -fy, T);
+    }
+
+    /**
+     * Handles the effect of a collision on one of the two particles.
+     * The distance is raised to distanceExponent with StrictMath.pow, which
+     * gives the same bits on every machine where Math.pow need not.
+     * @param s The particles
+     * @param i The index of the particle to update
+     * @param j The index of the particle it hit
+     * @param d the distance between them
+     * @param T The physics delta t
+     */
+    static void collide(ParticleStore s, int i, int j, double d, double T) {
+        double nvx = -(s.mass[i]*s.vx[i] + s.mass[j]*s.vx[j]
+                + s.mass[j] * collisionElasticConstant * (s.vx[j] - s.vx[i]))
+                /(s.mass[i] + s.mass[j]);
+        double nvy = -(s.mass[i]*s.vy[i] + s.mass[j]*s.vy[j]
+                + s.mass[j] * collisionElasticConstant * (s.vy[j] - s.vy[i]))
+                / (s.mass[i] + s.mass[j]);
+        s.vy[i] = nvy;
+        s.vx[i] = nvx;
+
+        // wrong
+        double fy = collisionElasticConstant * (s.y[i] - s.y[j]) * ((s.mass[i] * s.mass[j])
+                / StrictMath.pow(d, distanceExponent));
+        double fx = collisionElasticConstant * (s.x[i] - s.x[j]) * ((s.mass[i] * s.mass[j])
+                / StrictMath.pow(d, distanceExponent));
+
+        applyForce(s, i, fx, fy, T);
+    }
+
+    /**
+     * Updates the position of a particle
+     * if this was done in the update method physics would be calculated incorrectly
+     * and Third Law force pairs would not be equal
+     * @param s The particles
+     * @param i The index of the particle
+     * @param T The physics delta t
+     * @param width the current width of the world
+     * @param height the current height of the world
+     */
+    public static void move(ParticleStore s, int i, double T, int width, int height) {
+        drift(s, i, T);
+        edgeCollide(s, i, width, height);
+    }
+
+    /**
+     * Updates the position of a particle without stopping it at the edges
+     * of the world, for worlds with open boundaries
+     * @param s The particles
+     * @param i The index of the particle
+     * @param T The physics delta t
+     */
+    public static void drift(ParticleStore s, int i, double T) {
+        s.x[i] += s.vx[i]*T + s.dx[i];
+        s.y[i] += s.vy[i]*T + s.dy[i];
+        s.dx[i] = 0;
+        s.dy[i] = 0;
+    }
+
+    /**
+     * Handles collisions with the edges of the world
+     * this mostly works but particles can accumulate in the corners over time
+     *
+     * @param s The particles
+     * @param i The index of the particle
+     * @param width the current width of the world
+     * @param height the current height of the world
+     */
+    static void edgeCollide(ParticleStore s, int i, int width, int height){
+        int r = s.size[i]/2;
+        if (s.x[i] <= 0+r) {
+            s.x[i] = 0 + r;
+            s.vx[i] = - s.vx[i] *c;
+        }
+        else if (s.x[i] >= width-r) {
+            s.x[i] = width -r;
+            s.vx[i] = -s.vx[i] *c;
+        }
+
+        if (s.y[i] <= 0+r) {
+            s.y[i] = + r;
+            s.vy[i] = - s.vy[i] *c;
+        }
+        else if (s.y[i] >= height-r) {
+            s.y[i] = height - r;
+            s.vy[i] = -s.vy[i] *c;
+        }
+    }
+
+    /**
+     * Applies a force to a particle for one step
+     * @param s The particles
+     * @param i The index of the particle
+     * @param fx fx
+     * @param fy fy
+     * @param dt change in time since last call
+     */
+    public static void applyForce(ParticleStore s, int i, double fx, double fy, double dt){
+        s.vx[i] += dt * (fx / s.mass[i]);
+        s.vy[i] += dt * (fy / s.mass[i]);
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2014 Rowan Phipps
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package my.particlesim;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+/**
+ * Draws particles straight into the pixels of a TYPE_INT_RGB image.
+ *
+ * Each disc is filled in straight from a table of where a disc of its size
+ * starts and ends on each row, shared by every particle of that size, instead
+ * of going through Graphics.drawImage once per particle.  Every row is a
+ * single Arrays.fill with the colour of the particle, so the table only costs
+ * two ints a row and does not depend on the colour.  Particles no bigger than
+ * the point size are a single pixel.  This is separate from SpriteAtlas,
+ * which keeps drawn images for drawing through Graphics.
+ *
+ * The image is split into bands of rows and the bands are drawn in parallel.
+ * Every particle is sorted into the bands it covers first so a band only looks
+ * at the particles that touch it, and no two threads ever write to the same
+ * pixel.
+ * @author rowan
+ */
+public class RasterRenderer {
+    private static final int BAND_HEIGHT = 64;
+    private static final int MAX_DISCS = 4096;
+    private final ConcurrentHashMap<Integer, Disc> discs = new ConcurrentHashMap<>();
+    private int[] bandStart = new int[0];
+    private int[] members = new int[0];     // particle indexes grouped by band
+    private int pointSize = 0;
+
+    /**
+     * Sets the size at or below which a particle is drawn as a single pixel
+     * instead of a disc.  When there are a lot of small particles on the
+     * screen this is much cheaper and looks much the same.
+     * @param pointSize The diameter, 0 to always draw discs
+     */
+    public void setPointSize(int pointSize) {
+        if (pointSize < 0) {
+            throw new IllegalArgumentException("pointSize must not be negative: " + pointSize);
+        }
+        this.pointSize = pointSize;
+    }
+
+    public int getPointSize() {
+        return this.pointSize;
+    }
+
+    /**
+     * Draws a snapshot over the whole of an image
+     * @param snap The particles to draw
+     * @param image The image to draw on, must be TYPE_INT_RGB
+     */
+    public void render(Snapshot snap, BufferedImage image) {
+        if (image.getType() != BufferedImage.TYPE_INT_RGB) {
+            throw new IllegalArgumentException("image must be TYPE_INT_RGB");
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        int bands = (height + BAND_HEIGHT - 1) / BAND_HEIGHT;
+        this.sortIntoBands(snap, bands, height);
+
+        IntStream.range(0, bands).parallel().forEach((b) -> {
+            int top = b * BAND_HEIGHT;
+            int bottom = Math.min(top + BAND_HEIGHT, height);
+            Arrays.fill(pixels, top * width, bottom * width, 0);
+            for (int m = bandStart[b]; m < bandStart[b + 1]; m++) {
+                this.drawDisc(snap, members[m], pixels, width, top, bottom);
+            }
+        });
+    }
+
+    /**
+     * Groups the particles by the bands of rows they cover with a counting
+     * sort.  Particles bigger than a band are listed in every band they cover.
+     */
+    private void sortIntoBands(Snapshot snap, int bands, int height) {
+        if (bandStart.length < bands + 1) {
+            bandStart = new int[bands + 1];
+        }
+        Arrays.fill(bandStart, 0, bands + 1, 0);
+
+        int n = snap.size();
+        int total = 0;
+        for (int i = 0; i < n; i++) {
+            int first = firstBand(snap, i, bands);
+            int last = lastBand(snap, i, bands, height);
+            for (int b = first; b <= last; b++) {
+                bandStart[b + 1]++;
+                total++;
+            }
+        }
+        for (int b = 0; b < bands; b++) {
+            bandStart[b + 1] += bandStart[b];
+        }
+        if (members.length < total) {
+            members = new int[Math.max(total, members.length + (members.length >> 1))];
+        }
+        int[] fill = Arrays.copyOf(bandStart, bands);
+        for (int i = 0; i < n; i++) {
+            int first = firstBand(snap, i, bands);
+            int last = lastBand(snap, i, bands, height);
+            for (int b = first; b <= last; b++) {
+                members[fill[b]++] = i;
+            }
+        }
+    }
+
+    private static int top(Snapshot snap, int i) {
+        return (int) snap.getY(i) - snap.getSize(i)/2;
+    }
+
+    private static int firstBand(Snapshot snap, int i, int bands) {
+        return Math.min(Math.max(top(snap, i), 0) / BAND_HEIGHT, bands);
+    }
+
+    private static int lastBand(Snapshot snap, int i, int bands, int height) {
+        int bottom = top(snap, i) + snap.getSize(i) - 1;
+        if (bottom < 0 || top(snap, i) >= height) {
+            return -1;
+        }
+        return Math.min(bottom / BAND_HEIGHT, bands - 1);
+    }
+
+    /**
+     * Fills in the disc of one particle on the rows of a band
+     */
+    private void drawDisc(Snapshot snap, int i, int[] pixels, int width, int top, int bottom) {
+        int size = snap.getSize(i);
+        if (size <= pointSize) {
+            int px = (int) snap.getX(i);
+            int py = (int) snap.getY(i);
+            if (px >= 0 && px < width && py >= top && py < bottom) {
+                pixels[py * width + px] = snap.getRgb(i);
+            }
+            return;
+        }
+        Disc disc = this.disc(size);
+        int rgb = snap.getRgb(i);
+        int left = (int) snap.getX(i) - size/2;
+        int y0 = (int) snap.getY(i) - size/2;
+        int rowFrom = Math.max(top, y0);
+        int rowTo = Math.min(bottom, y0 + size);
+        for (int row = rowFrom; row < rowTo; row++) {
+            int r = row - y0;
+            int from = Math.max(0, left + disc.start[r]);
+            int to = Math.min(width, left + disc.end[r]);
+            if (from < to) {
+                Arrays.fill(pixels, row * width + from, row * width + to, rgb);
+            }
+        }
+    }
+
+    /**
+     * Returns the shared disc for a size, making it the first time it is
+     * needed
+     * @param size The diameter of the disc
+     * @return The disc
+     */
+    private Disc disc(int size) {
+        Disc disc = discs.get(size);
+        if (disc == null) {
+            if (discs.size() >= MAX_DISCS) {
+                discs.clear();
+            }
+            disc = discs.computeIfAbsent(size, Disc::new);
+        }
+        return disc;
+    }
+
+    /**
+     * The columns a disc covers on each row
+     */
+    private static class Disc {
+        final int[] start;  // first column of the disc on each row
+        final int[] end;    // one past the last column
+
+        Disc(int size) {
+            start = new int[size];
+            end = new int[size];
+            double r = size / 2.0;
+            for (int y = 0; y < size; y++) {
+                double dy = y + 0.5 - r;
+                double half = Math.sqrt(Math.max(0, r * r - dy * dy));
+                start[y] = Math.max(0, (int) Math.ceil(r - half - 0.5));
+                end[y] = Math.min(size, (int) Math.floor(r + half - 0.5) + 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright (C) 2014 Rowan Phipps
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package my.particlesim;
+
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+/**
+ * Makes large sets of particles to start a simulation from.
+ *
+ * <ul>
+ * <li>UNIFORM spreads the particles evenly over the world.</li>
+ * <li>CLUSTER puts them in a Gaussian blob in the middle.</li>
+ * <li>DISC spreads them over a disc and sets it spinning, each particle
+ * moving at the speed that would keep it in a circle around the mass inside
+ * its orbit.</li>
+ * <li>LATTICE puts them on a square grid covering the world.</li>
+ * <li>PLASMA is uniform with equal numbers of heavy positive ions and light
+ * negative electrons, so the whole thing has no charge.</li>
+ * </ul>
+ *
+ * Masses are drawn between a smallest and largest mass, either evenly or
+ * from a power law so that light particles are much more common than heavy
+ * ones.  Charges are drawn evenly between a smallest and largest charge.
+ * Each particle can be given a random thermal velocity, smaller for heavier
+ * particles so they all have about the same energy, and the drift of the
+ * whole set is taken out afterwards.
+ *
+ * The same seed always makes the same particles, on any machine since the
+ * sines and logs come from StrictMath.  They are made in blocks in parallel,
+ * each block with its own random number generator split off from the seed in
+ * order, so the result does not depend on how many threads there are.  The
+ * particles go into the store in one addAll.
+ * @author rowan
+ */
+public class Scenario {
+    private static final int BLOCK = 1 << 14;
+
+    /**
+     * The ways particles can be laid out
+     */
+    public enum Kind {
+        UNIFORM, CLUSTER, DISC, LATTICE, PLASMA;
+
+        /**
+         * Finds a kind by name, ignoring case
+         * @param name The name
+         * @return The kind
+         * @throws IllegalArgumentException If there is no kind with that name
+         */
+        public static Kind named(String name) {
+            for (Kind k : values()) {
+                if (k.name().equalsIgnoreCase(name)) {
+                    return k;
+                }
+            }
+            throw new IllegalArgumentException("unknown scenario: " + name);
+        }
+    }
+
+    private final Kind kind;
+    private long seed = 1;
+    private int minMass = 5;
+    private int maxMass = 50;
+    private double massExponent = 0;
+    private int minCharge = -20;
+    private int maxCharge = 20;
+    private double thermalSpeed = 0;
+    private double radius = 0;
+
+    /**
+     * Creates a scenario with the default masses and charges
+     * @param kind How to lay the particles out
+     */
+    public Scenario(Kind kind) {
+        this.kind = kind;
+    }
+
+    public Kind getKind() {
+        return this.kind;
+    }
+
+    /**
+     * Sets the seed the particles are made from
+     * @param seed The seed
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public long getSeed() {
+        return this.seed;
+    }
+
+    /**
+     * Sets how masses are drawn.  With an exponent of 0 every mass from min to
+     * max is equally likely, otherwise the chance of a mass m goes as
+     * m^-exponent, so 2.35 gives about the spread of masses in a star cluster.
+     * @param min The smallest mass, at least 1
+     * @param max The largest mass, at most 32767
+     * @param exponent The power law exponent, 0 for even
+     */
+    public void setMass(int min, int max, double exponent) {
+        if (min < 1 || max < min || max > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("masses must be from 1 to " + Short.MAX_VALUE
+                    + " with min <= max: " + min + ", " + max);
+        }
+        if (!(exponent >= 0)) {
+            throw new IllegalArgumentException("exponent must not be negative: " + exponent);
+        }
+        this.minMass = min;
+        this.maxMass = max;
+        this.massExponent = exponent;
+    }
+
+    /**
+     * Sets the range charges are drawn from.  PLASMA gives its ions the
+     * largest size of charge in the range and its electrons the opposite.
+     * @param min The smallest charge
+     * @param max The largest charge
+     */
+    public void setCharge(int min, int max) {
+        if (max < min || min < Short.MIN_VALUE || max > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("charges must fit in a short with min <= max: "
+                    + min + ", " + max);
+        }
+        this.minCharge = min;
+        this.maxCharge = max;
+    }
+
+    /**
+     * Sets how fast the particles move at random.  A particle of average mass
+     * has this spread of speed in each direction and heavier particles move
+     * more slowly.
+     * @param speed The spread of speeds, 0 to start everything at rest apart
+     * from the spin of a DISC
+     */
+    public void setThermalSpeed(double speed) {
+        if (!(speed >= 0)) {
+            throw new IllegalArgumentException("speed must not be negative: " + speed);
+        }
+        this.thermalSpeed = speed;
+    }
+
+    /**
+     * Sets the size of a CLUSTER, which is the spread of the Gaussian, or a
+     * DISC, which is its radius
+     * @param radius The size, or 0 to fit it to the world
+     */
+    public void setRadius(double radius) {
+        if (!(radius >= 0)) {
+            throw new IllegalArgumentException("radius must not be negative: " + radius);
+        }
+        this.radius = radius;
+    }
+
+    /**
+     * Makes particles and adds them to a store
+     * @param into The store to add them to
+     * @param n The number of particles to make
+     * @param width The width of the world
+     * @param height The height of the world
+     * @return The index of the first new particle
+     */
+    public int generate(ParticleStore into, int n, int width, int height) {
+        if (n < 0) {
+            throw new IllegalArgumentException("n must not be negative: " + n);
+        }
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("the world has no area: " + width + "x" + height);
+        }
+        short[] mass = new short[n];
+        short[] charge = new short[n];
+        double[] x = new double[n];
+        double[] y = new double[n];
+        double[] vx = new double[n];
+        double[] vy = new double[n];
+
+        int blocks = (n + BLOCK - 1) / BLOCK;
+        SplittableRandom root = new SplittableRandom(seed);
+        SplittableRandom[] random = new SplittableRandom[blocks];
+        for (int b = 0; b < blocks; b++) {
+            random[b] = root.split();
+        }
+        double meanMass = this.meanMass();
+        IntStream.range(0, blocks).parallel().forEach((b) -> {
+            SplittableRandom r = random[b];
+            for (int i = b * BLOCK; i < Math.min(n, (b + 1) * BLOCK); i++) {
+                this.place(r, i, n, width, height, x, y);
+                int m = this.drawMass(r);
+                int q = r.nextInt(minCharge, maxCharge + 1);
+                if (kind == Kind.PLASMA) {
+                    // every other particle is an electron
+                    int ion = Math.max(Math.abs(minCharge), Math.abs(maxCharge));
+                    m = (i & 1) == 0 ? m : minMass;
+                    q = (i & 1) == 0 ? ion : -ion;
+                }
+                mass[i] = (short) m;
+                charge[i] = (short) q;
+                double spread = thermalSpeed * Math.sqrt(meanMass / m);
+                vx[i] = spread * gaussian(r);
+                vy[i] = spread * gaussian(r);
+            }
+        });
+
+        if (thermalSpeed > 0) {
+            this.removeDrift(mass, vx, vy, n);
+        }
+        if (kind == Kind.DISC) {
+            this.spin(mass, x, y, vx, vy, n, width, height);
+        }
+        return into.addAll(mass, charge, x, y, vx, vy, n);
+    }
+
+    /**
+     * Picks where particle i of n goes
+     */
+    private void place(SplittableRandom r, int i, int n, int width, int height,
+            double[] x, double[] y) {
+        switch (kind) {
+            case CLUSTER: {
+                double sd = radius > 0 ? radius : Math.min(width, height) / 8.0;
+                double px;
+                double py;
+                do {
+                    px = width / 2.0 + sd * gaussian(r);
+                    py = height / 2.0 + sd * gaussian(r);
+                } while (px < 0 || px >= width || py < 0 || py >= height);
+                x[i] = px;
+                y[i] = py;
+                break;
+            }
+            case DISC: {
+                double R = radius > 0 ? radius : Math.min(width, height) * 0.4;
+                // the square root spreads them evenly over the area
+                double d = R * Math.sqrt(r.nextDouble());
+                double a = 2 * Math.PI * r.nextDouble();
+                x[i] = Math.min(Math.max(width / 2.0 + d * StrictMath.cos(a), 0), Math.nextDown((double) width));
+                y[i] = Math.min(Math.max(height / 2.0 + d * StrictMath.sin(a), 0), Math.nextDown((double) height));
+                break;
+            }
+            case LATTICE: {
+                int cols = Math.max(1, (int) Math.ceil(Math.sqrt((double) n * width / height)));
+                int rows = Math.max(1, (n + cols - 1) / cols);
+                x[i] = (i % cols + 0.5) * width / cols;
+                y[i] = (i / cols + 0.5) * height / rows;
+                break;
+            }
+            default:
+                x[i] = r.nextDouble() * width;
+                y[i] = r.nextDouble() * height;
+        }
+    }
+
+    /**
+     * Draws a mass, by inverting the cumulative distribution of the power law
+     */
+    private int drawMass(SplittableRandom r) {
+        if (massExponent == 0) {
+            return r.nextInt(minMass, maxMass + 1);
+        }
+        double lo = minMass;
+        double hi = maxMass + 1;
+        double u = r.nextDouble();
+        double m;
+        if (Math.abs(massExponent - 1) < 1e-9) {
+            m = lo * StrictMath.pow(hi / lo, u);
+        }
+        else {
+            double e = 1 - massExponent;
+            double a = StrictMath.pow(lo, e);
+            m = StrictMath.pow(a + u * (StrictMath.pow(hi, e) - a), 1 / e);
+        }
+        return Math.min(Math.max((int) m, minMass), maxMass);
+    }
+
+    /**
+     * Returns the average mass drawMass gives, near enough to scale the
+     * thermal speeds
+     */
+    private double meanMass() {
+        if (kind == Kind.PLASMA) {
+            return minMass;
+        }
+        if (massExponent == 0) {
+            return (minMass + maxMass) / 2.0;
+        }
+        double total = 0;
+        double weight = 0;
+        for (int m = minMass; m <= maxMass; m++) {
+            double p = StrictMath.pow(m, -massExponent);
+            total += p * m;
+            weight += p;
+        }
+        return total / weight;
+    }
+
+    /**
+     * Takes away the velocity of the centre of mass so the set stays put
+     */
+    private void removeDrift(short[] mass, double[] vx, double[] vy, int n) {
+        double px = 0;
+        double py = 0;
+        double total = 0;
+        for (int i = 0; i < n; i++) {
+            px += mass[i] * vx[i];
+            py += mass[i] * vy[i];
+            total += mass[i];
+        }
+        if (total > 0) {
+            double cx = px / total;
+            double cy = py / total;
+            for (int i = 0; i < n; i++) {
+                vx[i] -= cx;
+                vy[i] -= cy;
+            }
+        }
+    }
+
+    /**
+     * Adds the orbital speed to every particle of a disc.  Gravity here falls
+     * off as 1/r, so the speed for a circle is sqrt(g M) where M is the mass
+     * inside the orbit, taken as the share of the total mass by area.
+     */
+    private void spin(short[] mass, double[] x, double[] y, double[] vx, double[] vy,
+            int n, int width, int height) {
+        double total = 0;
+        for (int i = 0; i < n; i++) {
+            total += mass[i];
+        }
+        double R = radius > 0 ? radius : Math.min(width, height) * 0.4;
+        double cx = width / 2.0;
+        double cy = height / 2.0;
+        double M = total;
+        IntStream.range(0, n).parallel().forEach((i) -> {
+            double rx = x[i] - cx;
+            double ry = y[i] - cy;
+            double d = Math.sqrt(rx * rx + ry * ry);
+            if (d > 0) {
+                double inside = M * Math.min(d * d / (R * R), 1);
+                double v = Math.sqrt(Physics.g * inside);
+                vx[i] += -ry / d * v;
+                vy[i] += rx / d * v;
+            }
+        });
+    }
+
+    /**
+     * Draws from a normal distribution with the polar method, since
+     * SplittableRandom has no nextGaussian
+     */
+    private static double gaussian(SplittableRandom r) {
+        double u;
+        double v;
+        double s;
+        do {
+            u = 2 * r.nextDouble() - 1;
+            v = 2 * r.nextDouble() - 1;
+            s = u * u + v * v;
+        } while (s >= 1 || s == 0);
+        return u * Math.sqrt(-2 * StrictMath.log(s) / s);
+    }
+}
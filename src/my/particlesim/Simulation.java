@@ -0,0 +1,573 @@
+/*
+ * Copyright (C) 2014 Rowan Phipps
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package my.particlesim;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * A world full of particles and the physics that moves them.
+ * This does not use AWT so it can run on machines without a display, MyCanvas
+ * draws one of these on screen.
+ * @author rowan
+ */
+public class Simulation {
+    private final ParticleStore store = new ParticleStore();
+    private int width;
+    private int height;
+    private long steps = 0;
+    private ForceSolver solver = new PairForceSolver();
+    private Broadphase broadphase = new GridBroadphase();
+    private Integrator integrator = new EulerIntegrator();
+    private ContinuousCollider continuous = null;
+    private final ForceSolver fallback = new DirectSolver();
+    private TrajectoryRecorder recorder = null;
+    private boolean lastGravity;
+    private boolean lastElectro;
+    private boolean lastCollision;
+    private int lastModCount;
+    private boolean open = false;
+    private long escaped = 0;
+    private boolean merging = false;
+    private long merges = 0;
+    private int[] group = new int[0];   // union find of touching particles
+    private int[] keep = new int[0];    // particle each group merges into
+    private StepMetrics metrics = null;
+    private boolean deterministic = false;
+    private long stateHash = 0;
+
+    /**
+     * Creates an empty world
+     * @param width The width of the world
+     * @param height The height of the world
+     */
+    public Simulation(int width, int height) {
+        this.setSize(width, height);
+    }
+
+    /**
+     * Advances the simulation by one step.
+     * @param T Physics delta t
+     * @param gravity Sets whether or not to simulate gravity
+     * @param electro Sets whether or not to simulate electrostatic forces
+     * @param collision Sets whether or not particles collide
+     */
+    public void step(double T, boolean gravity, boolean electro, boolean collision) {
+        StepMetrics m = this.metrics;
+        long start = m != null ? System.nanoTime() : 0;
+        int n = store.size();
+        if (gravity != lastGravity || electro != lastElectro || collision != lastCollision
+                || store.modCount() != lastModCount) {
+            integrator.reset();
+            lastGravity = gravity;
+            lastElectro = electro;
+            lastCollision = collision;
+        }
+        boolean merge = collision && this.merging;
+        boolean swept = collision && this.continuous != null && !merge;
+        if (this.solver == null && this.integrator instanceof EulerIntegrator && !swept && !merge) {
+            // Physics.update writes to other particles so it can only run on
+            // one thread
+            for (int i = 0; i < n; i++) {
+                Physics.update(store, i, T, gravity, electro, collision);
+            }
+            long moveStart = m != null ? System.nanoTime() : 0;
+            if (m != null) {
+                // forces and collisions are one pass here, so it all counts as forces
+                m.forcesDone(moveStart - start, n);
+            }
+            for (int i = 0; i < n; i++) {
+                if (open) {
+                    Physics.drift(store, i, T);
+                }
+                else {
+                    Physics.move(store, i, T, width, height);
+                }
+            }
+            if (m != null) {
+                m.moveDone(System.nanoTime() - moveStart);
+            }
+        }
+        else {
+            Integrator.Drift drift;
+            if (swept) {
+                drift = (dt) -> continuous.drift(store, dt, width, height, !open);
+            }
+            else if (open) {
+                drift = (dt) -> {
+                    for (int i = 0; i < store.size(); i++) {
+                        Physics.drift(store, i, dt);
+                    }
+                };
+            }
+            else {
+                drift = (dt) -> {
+                    for (int i = 0; i < store.size(); i++) {
+                        Physics.move(store, i, dt, width, height);
+                    }
+                };
+            }
+            if (m != null) {
+                Integrator.Drift untimed = drift;
+                drift = (dt) -> {
+                    long t = System.nanoTime();
+                    untimed.drift(dt);
+                    m.moveDone(System.nanoTime() - t);
+                };
+            }
+            integrator.step(store, T, width, height,
+                    new SolverForces(gravity, electro, collision), drift,
+                    collision && !swept && !merge ? () -> this.collide(T) : null);
+        }
+        if (merge) {
+            long t = m != null ? System.nanoTime() : 0;
+            long[] found = this.merge();
+            if (m != null) {
+                m.collisionsDone(System.nanoTime() - t, found[0], found[1]);
+            }
+        }
+        if (open) {
+            escaped += store.removeIf((i) -> !(store.x[i] >= 0 && store.x[i] < width
+                    && store.y[i] >= 0 && store.y[i] < height));
+        }
+        lastModCount = store.modCount();
+        steps++;
+        if (this.deterministic) {
+            this.stateHash = StateHash.of(store);
+        }
+        if (m != null) {
+            m.stepDone(System.nanoTime() - start, store.size());
+        }
+        if (this.recorder != null) {
+            this.recorder.record(store, steps);
+        }
+    }
+
+    /**
+     * Works out the gravity and electrostatic forces with the force solver.
+     * Only the Euler integrator can use the Physics.update path, the others
+     * use a DirectSolver when there is no solver, which gives the same forces.
+     */
+    private class SolverForces implements Integrator.Forces {
+        private final boolean gravity;
+        private final boolean electro;
+        private final boolean collision;
+
+        SolverForces(boolean gravity, boolean electro, boolean collision) {
+            this.gravity = gravity;
+            this.electro = electro;
+            this.collision = collision;
+        }
+
+        private ForceSolver solver() {
+            return Simulation.this.solver == null ? fallback : Simulation.this.solver;
+        }
+
+        @Override
+        public void compute(double[] fx, double[] fy) {
+            StepMetrics m = metrics;
+            long started = m != null ? System.nanoTime() : 0;
+            if (gravity || electro) {
+                this.solver().computeForces(store, width, height, fx, fy, gravity, electro, collision);
+            }
+            else {
+                Arrays.fill(fx, 0, store.size(), 0);
+                Arrays.fill(fy, 0, store.size(), 0);
+            }
+            if (m != null) {
+                m.forcesDone(System.nanoTime() - started, store.size());
+            }
+        }
+
+        @Override
+        public void compute(int[] targets, int count, double[] fx, double[] fy) {
+            StepMetrics m = metrics;
+            long started = m != null ? System.nanoTime() : 0;
+            if (gravity || electro) {
+                this.solver().computeForces(store, width, height, targets, count,
+                        fx, fy, gravity, electro, collision);
+            }
+            else {
+                for (int t = 0; t < count; t++) {
+                    fx[targets[t]] = 0;
+                    fy[targets[t]] = 0;
+                }
+            }
+            if (m != null) {
+                m.forcesDone(System.nanoTime() - started, count);
+            }
+        }
+    }
+
+    /**
+     * Collides the touching pairs found by the broadphase
+     * @param T Physics delta t
+     */
+    private void collide(double T) {
+        StepMetrics m = this.metrics;
+        if (m == null) {
+            broadphase.findPairs(store, (i, j) -> {
+                Physics.collideIfTouching(store, i, j, T);
+            });
+            return;
+        }
+        long t = System.nanoTime();
+        long[] found = new long[2];
+        broadphase.findPairs(store, (i, j) -> {
+            found[0]++;
+            if (Physics.collideIfTouching(store, i, j, T)) {
+                found[1]++;
+            }
+        });
+        m.collisionsDone(System.nanoTime() - t, found[0], found[1]);
+    }
+
+    /**
+     * Merges every group of touching particles into one.  Particles that
+     * touch through a chain of others all end up in the same group, and the
+     * heaviest of them absorbs the rest so that big bodies keep their handles.
+     * @return The number of pairs the broadphase found and the number of
+     * them that were touching
+     */
+    private long[] merge() {
+        int n = store.size();
+        if (group.length < n) {
+            group = new int[Math.max(n, group.length * 2)];
+            keep = new int[group.length];
+        }
+        for (int i = 0; i < n; i++) {
+            group[i] = i;
+            keep[i] = -1;
+        }
+        long[] found = new long[2];
+        broadphase.findPairs(store, (i, j) -> {
+            found[0]++;
+            double dx = store.x[i] - store.x[j];
+            double dy = store.y[i] - store.y[j];
+            double d = Math.sqrt(dx * dx + dy * dy);
+            if (Physics.hasCollided(store, i, j, d)) {
+                found[1]++;
+                int a = this.find(i);
+                int b = this.find(j);
+                group[Math.max(a, b)] = Math.min(a, b);
+            }
+        });
+
+        boolean any = false;
+        for (int i = 0; i < n; i++) {
+            int g = this.find(i);
+            group[i] = g;
+            any |= g != i;
+            if (keep[g] < 0 || store.mass[i] > store.mass[keep[g]]) {
+                keep[g] = i;
+            }
+        }
+        if (!any) {
+            return found;
+        }
+        for (int i = 0; i < n; i++) {
+            int k = keep[group[i]];
+            if (k != i) {
+                store.combine(k, i);
+                merges++;
+            }
+        }
+        store.removeIf((i) -> keep[group[i]] != i);
+        return found;
+    }
+
+    private int find(int i) {
+        while (group[i] != i) {
+            group[i] = group[group[i]];
+            i = group[i];
+        }
+        return i;
+    }
+
+    /**
+     * Sets the solver used to calculate gravity and electrostatic forces.
+     * Passing null goes back to the single threaded Physics.update path,
+     * which is kept as the reference that other solvers are checked against.
+     * @param solver The force solver or null
+     */
+    public void setForceSolver(ForceSolver solver) {
+        if (this.deterministic && solver != null && !solver.isDeterministic()) {
+            throw new IllegalArgumentException("the simulation is deterministic but "
+                    + solver.getClass().getSimpleName() + " is not");
+        }
+        this.solver = solver;
+    }
+
+    /**
+     * Returns the solver used to calculate forces
+     * @return The force solver, or null for the Physics.update path
+     */
+    public ForceSolver getForceSolver() {
+        return this.solver;
+    }
+
+    /**
+     * Sets the broadphase used to find colliding particles when a force
+     * solver is in use
+     * @param broadphase The broadphase
+     */
+    public void setBroadphase(Broadphase broadphase) {
+        this.broadphase = broadphase;
+    }
+
+    /**
+     * Returns the broadphase used to find colliding particles
+     * @return The broadphase
+     */
+    public Broadphase getBroadphase() {
+        return this.broadphase;
+    }
+
+    /**
+     * Sets how the particles are moved from one step to the next
+     * @param integrator The integrator
+     */
+    public void setIntegrator(Integrator integrator) {
+        integrator.reset();
+        this.integrator = integrator;
+    }
+
+    /**
+     * Returns how the particles are moved from one step to the next
+     * @return The integrator
+     */
+    public Integrator getIntegrator() {
+        return this.integrator;
+    }
+
+    /**
+     * Sets whether collisions are found as the particles move, so that they
+     * cannot pass through each other at big steps, or only by checking for
+     * overlaps once per step
+     * @param continuous True to find collisions as the particles move
+     */
+    public void setContinuousCollisions(boolean continuous) {
+        if (!continuous) {
+            this.continuous = null;
+        }
+        else if (this.continuous == null) {
+            this.continuous = new ContinuousCollider();
+        }
+    }
+
+    /**
+     * Returns the collider used when collisions are continuous
+     * @return The collider, or null if collisions are only checked by overlap
+     */
+    public ContinuousCollider getContinuousCollider() {
+        return this.continuous;
+    }
+
+    /**
+     * Sets whether touching particles merge into one instead of bouncing off
+     * each other when collisions are on.  A merged particle keeps the mass,
+     * charge and momentum of the particles that made it, so a clumping world
+     * ends up with fewer, bigger bodies and each step gets cheaper.
+     * @param merging True to merge touching particles
+     */
+    public void setMerging(boolean merging) {
+        this.merging = merging;
+    }
+
+    public boolean isMerging() {
+        return this.merging;
+    }
+
+    /**
+     * Sets whether every run from the same state takes exactly the same
+     * steps, bit for bit, on any machine and with any number of threads.
+     *
+     * The physics itself already is as long as the force solver is, since
+     * the broadphases, integrators and collisions all run in a fixed order.
+     * This checks that the solver promises a fixed split and a fixed order of
+     * adding up, and from then on refuses solvers that do not.  It also
+     * hashes the state after every step, so two runs can be compared step by
+     * step with getStateHash.
+     * @param deterministic True to make the simulation reproducible
+     * @throws IllegalStateException If the force solver is not deterministic
+     */
+    public void setDeterministic(boolean deterministic) {
+        if (deterministic && this.solver != null && !this.solver.isDeterministic()) {
+            throw new IllegalStateException(this.solver.getClass().getSimpleName()
+                    + " is not deterministic");
+        }
+        this.deterministic = deterministic;
+        this.stateHash = deterministic ? StateHash.of(store) : 0;
+    }
+
+    public boolean isDeterministic() {
+        return this.deterministic;
+    }
+
+    /**
+     * Returns the hash of the state after the last step, see StateHash
+     * @return The hash, or 0 if the simulation is not deterministic
+     */
+    public long getStateHash() {
+        return this.stateHash;
+    }
+
+    /**
+     * Returns the number of particles that have been absorbed into others
+     * @return The number of merges
+     */
+    public long getMerges() {
+        return this.merges;
+    }
+
+    /**
+     * Sets whether the edges of the world are walls that particles bounce off,
+     * or open so that particles that cross them are removed at the end of the
+     * step.  Open edges let scenes that keep adding particles stay the same
+     * size instead of filling up.
+     * @param open True to remove particles that leave the world
+     */
+    public void setOpenBoundaries(boolean open) {
+        this.open = open;
+    }
+
+    public boolean isOpenBoundaries() {
+        return this.open;
+    }
+
+    /**
+     * Returns the number of particles removed because they left the world
+     * @return The number of particles
+     */
+    public long getEscaped() {
+        return this.escaped;
+    }
+
+    /**
+     * Removes a particle.  The last particle is moved into its place, so
+     * indexes held from before are out of date but handles are not.
+     * @param handle The handle of the particle, from ParticleStore.handle
+     * @return False if the particle had already been removed
+     */
+    public boolean remove(long handle) {
+        int i = store.indexOf(handle);
+        if (i < 0) {
+            return false;
+        }
+        store.remove(i);
+        return true;
+    }
+
+    /**
+     * Removes every particle that matches a test in one pass, keeping the
+     * order of the others
+     * @param dead Says whether the particle at an index should be removed,
+     * looking only at that particle
+     * @return The number of particles removed
+     */
+    public int removeIf(IntPredicate dead) {
+        return store.removeIf(dead);
+    }
+
+    /**
+     * Sets where the time taken by each phase of a step is recorded
+     * @param metrics The metrics, or null to stop timing
+     */
+    public void setMetrics(StepMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns where the time taken by each phase of a step is recorded
+     * @return The metrics, or null if steps are not being timed
+     */
+    public StepMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Sets the recorder that is handed the particles after every step
+     * @param recorder The recorder, or null to stop recording
+     */
+    public void setRecorder(TrajectoryRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Returns the recorder that is handed the particles after every step
+     * @return The recorder, or null if nothing is being recorded
+     */
+    public TrajectoryRecorder getRecorder() {
+        return this.recorder;
+    }
+
+    /**
+     * Resizes the world.  Particles outside of it are pushed back in on the
+     * next step.
+     * @param width The width of the world
+     * @param height The height of the world
+     */
+    public final void setSize(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    public int getWidth() {
+        return this.width;
+    }
+
+    public int getHeight() {
+        return this.height;
+    }
+
+    /**
+     * Returns the number of steps taken since the world was created or cleared
+     * @return The step count
+     */
+    public long getSteps() {
+        return this.steps;
+    }
+
+    /**
+     * Sets the step count, used when a saved simulation is loaded
+     * @param steps The step count
+     */
+    void setSteps(long steps) {
+        this.steps = steps;
+    }
+
+    /**
+     * Returns the particles in the world.  They may be changed between steps.
+     * @return The particle store
+     */
+    public ParticleStore getParticles() {
+        return this.store;
+    }
+
+    /**
+     * Removes all particles from the world
+     */
+    public void clear() {
+        this.store.clear();
+        this.integrator.reset();
+        this.steps = 0;
+        this.escaped = 0;
+        this.merges = 0;
+        this.stateHash = this.deterministic ? StateHash.of(store) : 0;
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2014 Rowan Phipps
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package my.particlesim;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Runs a simulation on a thread of its own at a fixed rate.
+ *
+ * Real time is added up in an accumulator and a step is taken for every
+ * stepMillis that has gone by, so each step is always the same size no
+ * matter how late the thread wakes up.  If the steps take longer than real
+ * time the thread only catches up by a limited number of steps at a time and
+ * drops the rest, so the simulation slows down instead of falling further
+ * and further behind.
+ *
+ * Only this thread touches the simulation.  Other threads hand it work with
+ * invokeLater and read the results from the SnapshotBuffer, which is
+ * published after the particles have moved so it never holds half a step.
+ * @author rowan
+ */
+public class SimulationThread {
+    private static final long PUBLISH_NANOS = TimeUnit.MILLISECONDS.toNanos(8);
+    private final Simulation sim;
+    private final long stepNanos;
+    private final double dt;
+    private final ConcurrentLinkedQueue<Consumer<Simulation>> tasks = new ConcurrentLinkedQueue<>();
+    private final SnapshotBuffer snapshots;
+    private volatile int maxCatchUp = 25;
+    private volatile boolean gravity = true;
+    private volatile boolean electro = true;
+    private volatile boolean collision = false;
+    private volatile boolean running = false;
+    private volatile long droppedSteps = 0;
+    private Thread thread;
+
+    /**
+     * Creates a thread to run a simulation.  It does not start until start
+     * is called.
+     * @param sim The simulation to run
+     * @param stepMillis The real time between steps in milliseconds, the
+     * physics delta t is 1 / stepMillis the same as MyCanvas.updatePhysics
+     * @param snapshots Where to publish the particles after steps have been taken
+     */
+    public SimulationThread(Simulation sim, int stepMillis, SnapshotBuffer snapshots) {
+        this.sim = sim;
+        this.stepNanos = TimeUnit.MILLISECONDS.toNanos(stepMillis);
+        this.dt = 1.0 / stepMillis;
+        this.snapshots = snapshots;
+    }
+
+    /**
+     * Starts running the simulation
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this::run, "physics");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops running the simulation and waits for the current step to finish
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public synchronized void stop() throws InterruptedException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(thread);
+        thread.join();
+        thread = null;
+    }
+
+    /**
+     * Runs a task on the physics thread between two steps.  This is the only
+     * safe way to change the simulation while the thread is running.  If the
+     * thread is not running the task is run straight away.
+     * @param task The task to run
+     */
+    public void invokeLater(Consumer<Simulation> task) {
+        tasks.add(task);
+        if (!running && this.runTasks()) {
+            snapshots.publish(sim.getParticles(), sim.getSteps());
+        }
+    }
+
+    /**
+     * Sets which forces to simulate from the next step on
+     * @param gravity Sets whether or not to simulate gravity
+     * @param electro Sets whether or not to simulate electrostatic forces
+     * @param collision Sets whether or not particles collide
+     */
+    public void setForces(boolean gravity, boolean electro, boolean collision) {
+        this.gravity = gravity;
+        this.electro = electro;
+        this.collision = collision;
+    }
+
+    /**
+     * Sets the most steps that will be taken to catch up with real time
+     * before the remaining time is dropped
+     * @param steps The number of steps
+     */
+    public void setMaxCatchUp(int steps) {
+        if (steps < 1) {
+            throw new IllegalArgumentException("steps must be positive: " + steps);
+        }
+        this.maxCatchUp = steps;
+    }
+
+    /**
+     * Returns the number of steps that were dropped because the physics could
+     * not keep up with real time
+     * @return The number of dropped steps
+     */
+    public long getDroppedSteps() {
+        return droppedSteps;
+    }
+
+    private void run() {
+        long last = System.nanoTime();
+        long lastPublish = last;
+        long accumulator = 0;
+        while (running) {
+            boolean changed = this.runTasks();
+
+            long now = System.nanoTime();
+            accumulator += now - last;
+            last = now;
+            int taken = 0;
+            while (accumulator >= stepNanos && taken < maxCatchUp) {
+                sim.step(dt, gravity, electro, collision);
+                accumulator -= stepNanos;
+                taken++;
+            }
+            long dropped = accumulator / stepNanos;
+            if (dropped > 0) {
+                droppedSteps += dropped;
+                accumulator %= stepNanos;
+            }
+            StepMetrics metrics = sim.getMetrics();
+            if (metrics != null && (taken > 1 || dropped > 0)) {
+                // more than one step means the last wake up was at least a step late
+                metrics.tickLate(dropped);
+            }
+
+            // there is no point making snapshots faster than they can be drawn
+            now = System.nanoTime();
+            if (changed || (taken > 0 && now - lastPublish >= PUBLISH_NANOS)) {
+                snapshots.publish(sim.getParticles(), sim.getSteps());
+                lastPublish = now;
+            }
+
+            long wait = stepNanos - accumulator - (System.nanoTime() - last);
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+    }
+
+    /**
+     * Runs all of the waiting tasks
+     * @return True if any tasks were run
+     */
+    private boolean runTasks() {
+        boolean ran = false;
+        Consumer<Simulation> task;
+        while ((task = tasks.poll()) != null) {
+            task.accept(sim);
+            ran = true;
+        }
+        return ran;
+    }
+}
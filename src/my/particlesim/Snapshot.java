@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2014 Rowan Phipps
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package my.particlesim;
+
+/**
+ * What the particles looked like at the end of one step.
+ * A snapshot does not change while a reader has it.  Snapshots handed out by
+ * a SnapshotBuffer are reused for later steps once the reader has moved on
+ * to a newer one, so they should not be kept around.
+ * @author rowan
+ */
+public final class Snapshot {
+    private int count = 0;
+    private long step = 0;
+    private double[] x = new double[0];
+    private double[] y = new double[0];
+    private short[] size = new short[0];
+    private short[] mass = new short[0];
+    private short[] charge = new short[0];
+    private int[] rgb = new int[0];
+
+    /**
+     * Creates a snapshot with no particles in it
+     */
+    Snapshot() {
+    }
+
+    /**
+     * Copies the particles out of a store
+     * @param s The particles
+     * @param step The step the particles are at
+     */
+    public Snapshot(ParticleStore s, long step) {
+        this.fill(s, step);
+    }
+
+    /**
+     * Copies the particles out of a store, reusing the arrays of this
+     * snapshot when they are big enough
+     * @param s The particles
+     * @param step The step the particles are at
+     */
+    void fill(ParticleStore s, long step) {
+        this.count = s.size();
+        this.step = step;
+        if (x.length < count) {
+            int cap = Math.max(count, x.length + (x.length >> 1));
+            x = new double[cap];
+            y = new double[cap];
+            size = new short[cap];
+            mass = new short[cap];
+            charge = new short[cap];
+            rgb = new int[cap];
+        }
+        System.arraycopy(s.x, 0, x, 0, count);
+        System.arraycopy(s.y, 0, y, 0, count);
+        System.arraycopy(s.size, 0, size, 0, count);
+        System.arraycopy(s.mass, 0, mass, 0, count);
+        System.arraycopy(s.charge, 0, charge, 0, count);
+        for (int i = 0; i < count; i++) {
+            rgb[i] = rgb(s.charge[i]);
+        }
+    }
+
+    /**
+     * Returns the colour of a particle as 0xRRGGBB.  White is no charge, red
+     * is positive, and blue is negative.  The saturation is proportional to
+     * the charge of the particle up to 100 either way, past that the colour
+     * stops changing.
+     * @param charge The charge of the particle
+     * @return The colour
+     */
+    public static int rgb(int charge) {
+        int temp = (int)(Math.min(Math.abs(charge), 100) * (255.0/100));
+        if (charge < 0) {
+            return (255-temp) << 16 | (255-temp) << 8 | 255;
+        }
+        else {
+            return 255 << 16 | (255-temp) << 8 | (255-temp);
+        }
+    }
+
+    /**
+     * Returns the number of particles
+     * @return The number of particles
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Returns the number of steps the simulation had taken
+     * @return The step count
+     */
+    public long getStep() {
+        return step;
+    }
+
+    public double getX(int i) {
+        return x[i];
+    }
+
+    public double getY(int i) {
+        return y[i];
+    }
+
+    /**
+     * Returns the diameter of a particle
+     * @param i The index of the particle
+     * @return size
+     */
+    public int getSize(int i) {
+        return size[i];
+    }
+
+    public int getMass(int i) {
+        return mass[i];
+    }
+
+    public int getCharge(int i) {
+        return charge[i];
+    }
+
+    /**
+     * Returns the colour of a particle as 0xRRGGBB
+     * @param i The index of the particle
+     * @return The colour
+     */
+    public int getRgb(int i) {
+        return rgb[i];
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2014 Rowan Phipps
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package my.particlesim;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Passes snapshots from the physics to the renderer without locks.
+ *
+ * This is a triple buffer.  The physics owns one snapshot and fills it in
+ * after a step, the renderer owns another and draws it, and the third sits in
+ * the middle holding the newest finished step.  Publishing and acquiring each
+ * swap their own snapshot with the middle one in a single atomic operation,
+ * so the renderer always sees a whole step and neither side ever waits for
+ * the other.  Nothing is allocated once the snapshots are big enough.
+ *
+ * There must only be one thread publishing and one thread acquiring at a time.
+ * @author rowan
+ */
+public class SnapshotBuffer {
+    private static final int FRESH = 4;     // set when the middle has not been acquired yet
+    private final Snapshot[] frames = {new Snapshot(), new Snapshot(), new Snapshot()};
+    private final AtomicInteger middle = new AtomicInteger(1);
+    private int back = 0;   // owned by the publisher
+    private int front = 2;  // owned by the reader
+
+    /**
+     * Copies the particles into the back snapshot and makes it the newest
+     * @param s The particles
+     * @param step The step the particles are at
+     */
+    public void publish(ParticleStore s, long step) {
+        frames[back].fill(s, step);
+        back = middle.getAndSet(back | FRESH) & 3;
+    }
+
+    /**
+     * Returns the newest snapshot.  It stays the same until the next call to
+     * acquire.
+     * @return The newest snapshot
+     */
+    public Snapshot acquire() {
+        if ((middle.get() & FRESH) != 0) {
+            front = middle.getAndSet(front) & 3;
+        }
+        return frames[front];
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2014 Rowan Phipps
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package my.particlesim;
+
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the sprite of every particle drawn through Graphics in one shared
+ * image.
+ *
+ * A sprite is a filled disc and only depends on the size of the particle and
+ * its colour, which comes from its charge, so particles share them.  They
+ * are drawn into the atlas the first time they are needed and drawing a
+ * particle copies its region of the atlas.
+ *
+ * The atlas is packed in shelves that run the whole width of the image.
+ * Every shelf is for one size class, a power of two, and is cut into square
+ * slots of that size, so a slot given up by one sprite fits any other sprite
+ * of the same class.  When a class has no free slot and there is no room for
+ * another shelf, the sprite of that class that was used longest ago is thrown
+ * out.  If the class has no shelf at all the whole atlas is emptied and
+ * packed again from the start, which only happens when a lot of new sizes
+ * turn up at once.  Particles bigger than MAX_SPRITE are drawn with fillOval.
+ *
+ * Only one thread should draw with an atlas at a time, the shared atlas is
+ * used from the event dispatch thread.
+ * @author rowan
+ */
+public class SpriteAtlas {
+    /**
+     * The biggest diameter that is kept in the atlas
+     */
+    public static final int MAX_SPRITE = 128;
+    private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SPRITE) + 1;
+    private static final SpriteAtlas SHARED = new SpriteAtlas();
+    private final BufferedImage image;
+    private final Graphics2D graphics;
+    private final int side;
+    private final LinkedHashMap<Long, Region> regions = new LinkedHashMap<>(256, 0.75f, true);
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ArrayDeque<Region>[] free = new ArrayDeque[CLASSES];
+    private final HashMap<Integer, Color> colors = new HashMap<>();  // for sprites too big to keep
+    private int shelfTop = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * Where a sprite is in the atlas
+     */
+    private static final class Region {
+        final int sx;
+        final int sy;
+        final int slot;     // the size class, as the side of the slot
+
+        Region(int sx, int sy, int slot) {
+            this.sx = sx;
+            this.sy = sy;
+            this.slot = slot;
+        }
+    }
+
+    /**
+     * Creates an atlas of 1024 by 1024 pixels
+     */
+    public SpriteAtlas() {
+        this(1024);
+    }
+
+    /**
+     * Creates an atlas
+     * @param side The width and height of the atlas image, at least MAX_SPRITE
+     */
+    public SpriteAtlas(int side) {
+        if (side < MAX_SPRITE) {
+            throw new IllegalArgumentException("side must be at least " + MAX_SPRITE + ": " + side);
+        }
+        this.side = side;
+        this.image = new BufferedImage(side, side, BufferedImage.TYPE_INT_ARGB);
+        this.graphics = image.createGraphics();
+        for (int c = 0; c < CLASSES; c++) {
+            free[c] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * Returns the atlas shared by all of the particles
+     * @return The shared atlas
+     */
+    public static SpriteAtlas shared() {
+        return SHARED;
+    }
+
+    /**
+     * Draws a particle with the colour its charge gives it
+     * @param g Where to draw
+     * @param size The diameter of the particle
+     * @param charge The charge of the particle
+     * @param x The x location of the centre of the particle
+     * @param y The y location of the centre of the particle
+     */
+    public void drawCharge(Graphics g, int size, int charge, int x, int y) {
+        this.draw(g, size, Snapshot.rgb(charge), x, y);
+    }
+
+    /**
+     * Draws a particle
+     * @param g Where to draw
+     * @param size The diameter of the particle
+     * @param rgb The colour of the particle as 0xRRGGBB
+     * @param x The x location of the centre of the particle
+     * @param y The y location of the centre of the particle
+     */
+    public synchronized void draw(Graphics g, int size, int rgb, int x, int y) {
+        if (size <= 0) {
+            return;
+        }
+        int left = x - size / 2;
+        int top = y - size / 2;
+        if (size > MAX_SPRITE) {
+            g.setColor(colors.computeIfAbsent(rgb, Color::new));
+            g.fillOval(left, top, size, size);
+            return;
+        }
+        Region r = this.region(size, rgb);
+        g.drawImage(image, left, top, left + size, top + size,
+                r.sx, r.sy, r.sx + size, r.sy + size, null);
+    }
+
+    /**
+     * Finds the region of a sprite, drawing it into the atlas if it is not
+     * there yet
+     */
+    private Region region(int size, int rgb) {
+        long key = (long) size << 32 | (rgb & 0xFFFFFFL);
+        Region r = regions.get(key);
+        if (r != null) {
+            return r;
+        }
+        misses++;
+        int c = 32 - Integer.numberOfLeadingZeros(size - 1);     // ceil(log2(size))
+        r = free[c].poll();
+        if (r == null && !this.addShelf(c)) {
+            r = this.evict(c);
+            if (r == null) {
+                this.flush();
+                this.addShelf(c);
+            }
+        }
+        if (r == null) {
+            r = free[c].poll();
+        }
+        regions.put(key, r);
+
+        graphics.setComposite(AlphaComposite.Src);
+        graphics.setColor(new Color(0, true));
+        graphics.fillRect(r.sx, r.sy, r.slot, r.slot);
+        graphics.setColor(new Color(rgb));
+        graphics.fillOval(r.sx, r.sy, size, size);
+        return r;
+    }
+
+    /**
+     * Adds a shelf of free slots for a size class below the last one
+     * @return False if there is no room left
+     */
+    private boolean addShelf(int c) {
+        int slot = 1 << c;
+        if (shelfTop + slot > side) {
+            return false;
+        }
+        for (int sx = 0; sx + slot <= side; sx += slot) {
+            free[c].add(new Region(sx, shelfTop, slot));
+        }
+        shelfTop += slot;
+        return true;
+    }
+
+    /**
+     * Throws out the sprite of a size class that was used longest ago
+     * @return Its slot, or null if the class has no sprites
+     */
+    private Region evict(int c) {
+        Iterator<Map.Entry<Long, Region>> it = regions.entrySet().iterator();
+        while (it.hasNext()) {
+            Region r = it.next().getValue();
+            if (r.slot == 1 << c) {
+                it.remove();
+                evictions++;
+                return r;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Empties the atlas so it can be packed again
+     */
+    private void flush() {
+        evictions += regions.size();
+        regions.clear();
+        for (ArrayDeque<Region> f : free) {
+            f.clear();
+        }
+        shelfTop = 0;
+    }
+
+    /**
+     * Returns the number of sprites in the atlas
+     * @return The number of sprites
+     */
+    public synchronized int getSpriteCount() {
+        return regions.size();
+    }
+
+    /**
+     * Returns how many times a sprite had to be drawn into the atlas
+     * @return The number of misses
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns how many sprites have been thrown out to make room
+     * @return The number of evictions
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2014 Rowan Phipps
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package my.particlesim;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.IntStream;
+
+/**
+ * Saves and loads the whole state of a simulation in a compact binary form.
+ *
+ * The file is a 64 byte header followed by one block per value, each holding
+ * that value for every particle in order: x, y, vx and vy as doubles, then
+ * mass and charge as shorts.  Everything is little endian.  The header is
+ *
+ * <pre>
+ *  0  int   magic, "PSIM"
+ *  4  int   version
+ *  8  int   number of particles
+ * 12  int   width of the world
+ * 16  int   height of the world
+ * 20  int   unused
+ * 24  long  step count
+ * 32        unused up to 64
+ * </pre>
+ *
+ * The blocks are read and written a few megabytes at a time with positional
+ * reads and writes, so a file with millions of particles is little more than
+ * a memory copy.  Loading splits every block into chunks and reads the chunks
+ * in parallel.  Nothing is memory mapped, since on Windows a file cannot be
+ * replaced while a mapping of it is still alive, and a mapping only goes away
+ * when the garbage collector gets round to it.
+ *
+ * Only the particles, the size of the world and the step count are saved.
+ * Integrators that carry state from one step to the next start again from
+ * the particles when a file is loaded.  For VelocityVerletIntegrator that
+ * gives the same forces it had, so a run carries on exactly as if it had not
+ * stopped, but BlockStepIntegrator picks every particle's level again and
+ * starts all of them on the same step, so a run with it does not come out
+ * bit for bit the same as one that was never saved and loaded.
+ * @author rowan
+ */
+public final class StateFile {
+    static final int MAGIC = 0x5053494D;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    private static final int WRITE_CHUNK = 1 << 22; // bytes written at a time
+    private static final int READ_CHUNK = 1 << 19;  // elements read by each task
+
+    private StateFile() {
+    }
+
+    /**
+     * Returns the size of a file holding a number of particles
+     * @param count The number of particles
+     * @return The size in bytes
+     */
+    static long fileSize(int count) {
+        return HEADER_SIZE + (long) count * (4 * 8 + 2 * 2);
+    }
+
+    /**
+     * Saves a simulation.  The state is written to a temporary file that then
+     * replaces the target, so a crash part way through never leaves a broken
+     * file behind.
+     * @param sim The simulation to save
+     * @param file Where to save it
+     * @throws IOException If the file cannot be written
+     */
+    public static void save(Simulation sim, Path file) throws IOException {
+        ParticleStore s = sim.getParticles();
+        int n = s.size();
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(0, MAGIC);
+                header.putInt(4, VERSION);
+                header.putInt(8, n);
+                header.putInt(12, sim.getWidth());
+                header.putInt(16, sim.getHeight());
+                header.putLong(24, sim.getSteps());
+                long pos = writeFully(ch, 0, header);
+
+                ByteBuffer buf = ByteBuffer.allocateDirect(WRITE_CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+                pos = writeDoubles(ch, pos, buf, s.x, n);
+                pos = writeDoubles(ch, pos, buf, s.y, n);
+                pos = writeDoubles(ch, pos, buf, s.vx, n);
+                pos = writeDoubles(ch, pos, buf, s.vy, n);
+                pos = writeShorts(ch, pos, buf, s.mass, n);
+                writeShorts(ch, pos, buf, s.charge, n);
+                ch.force(false);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Loads a simulation, replacing all of its particles, its size and its
+     * step count.  The whole file is read before the simulation is changed,
+     * so if it cannot be read the simulation is left as it was.
+     * @param sim The simulation to load into
+     * @param file The file to load
+     * @throws IOException If the file cannot be read or is not a state file
+     */
+    public static void load(Simulation sim, Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (ch.size() < HEADER_SIZE) {
+                throw new IOException(file + " is too short to be a state file");
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(ch, 0, header);
+            if (header.getInt(0) != MAGIC) {
+                throw new IOException(file + " is not a state file");
+            }
+            int version = header.getInt(4);
+            if (version != VERSION) {
+                throw new IOException(file + " is version " + version
+                        + " but only version " + VERSION + " is supported");
+            }
+            int n = header.getInt(8);
+            if (n < 0 || ch.size() != fileSize(n)) {
+                throw new IOException(file + " should hold " + n + " particles but is "
+                        + ch.size() + " bytes long");
+            }
+
+            double[] x = new double[n];
+            double[] y = new double[n];
+            double[] vx = new double[n];
+            double[] vy = new double[n];
+            short[] mass = new short[n];
+            short[] charge = new short[n];
+            double[][] doubles = {x, y, vx, vy};
+            short[][] shorts = {mass, charge};
+            int chunks = (n + READ_CHUNK - 1) / READ_CHUNK;
+            try {
+                // every chunk of every block is read and copied at once
+                IntStream.range(0, 6 * chunks).parallel().forEach((t) -> {
+                    int block = t / chunks;
+                    int from = t % chunks * READ_CHUNK;
+                    int len = Math.min(READ_CHUNK, n - from);
+                    try {
+                        if (block < 4) {
+                            long pos = HEADER_SIZE + (long) n * 8 * block + (long) from * 8;
+                            ByteBuffer buf = ByteBuffer.allocate(len * 8).order(ByteOrder.LITTLE_ENDIAN);
+                            readFully(ch, pos, buf);
+                            buf.asDoubleBuffer().get(doubles[block], from, len);
+                        }
+                        else {
+                            long pos = HEADER_SIZE + (long) n * 32 + (long) n * 2 * (block - 4) + (long) from * 2;
+                            ByteBuffer buf = ByteBuffer.allocate(len * 2).order(ByteOrder.LITTLE_ENDIAN);
+                            readFully(ch, pos, buf);
+                            buf.asShortBuffer().get(shorts[block - 4], from, len);
+                        }
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                });
+            } catch (UncheckedIOException ex) {
+                throw ex.getCause();
+            }
+
+            // only touch the simulation once everything has been read
+            sim.clear();
+            sim.setSize(header.getInt(12), header.getInt(16));
+            sim.setSteps(header.getLong(24));
+            ParticleStore s = sim.getParticles();
+            s.ensureCapacity(n);
+            s.addAll(mass, charge, x, y, vx, vy, n);
+        }
+    }
+
+    private static long writeDoubles(FileChannel ch, long pos, ByteBuffer buf, double[] a, int n)
+            throws IOException {
+        int per = buf.capacity() / 8;
+        for (int from = 0; from < n; from += per) {
+            int len = Math.min(per, n - from);
+            buf.clear();
+            buf.asDoubleBuffer().put(a, from, len);
+            buf.limit(len * 8);
+            pos = writeFully(ch, pos, buf);
+        }
+        return pos;
+    }
+
+    private static long writeShorts(FileChannel ch, long pos, ByteBuffer buf, short[] a, int n)
+            throws IOException {
+        int per = buf.capacity() / 2;
+        for (int from = 0; from < n; from += per) {
+            int len = Math.min(per, n - from);
+            buf.clear();
+            buf.asShortBuffer().put(a, from, len);
+            buf.limit(len * 2);
+            pos = writeFully(ch, pos, buf);
+        }
+        return pos;
+    }
+
+    /**
+     * Writes all of a buffer at a position
+     * @return The position after it
+     */
+    private static long writeFully(FileChannel ch, long pos, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            pos += ch.write(buf, pos);
+        }
+        return pos;
+    }
+
+    /**
+     * Fills a buffer from a position
+     */
+    private static void readFully(FileChannel ch, long pos, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            int read = ch.read(buf, pos + buf.position());
+            if (read < 0) {
+                throw new IOException("the file got shorter while it was being read");
+            }
+        }
+        buf.flip();
+    }
+}
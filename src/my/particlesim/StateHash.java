@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2014 Rowan Phipps
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package my.particlesim;
+
+import java.util.stream.IntStream;
+
+/**
+ * Hashes the exact state of a set of particles, so two runs can be checked
+ * to be bit for bit the same without keeping the whole state around.
+ *
+ * Every bit of the position, velocity, pending displacement, mass and charge
+ * of every particle goes into the hash, in index order.  The particles are
+ * hashed in fixed chunks in parallel and the chunk hashes are then combined
+ * in chunk order, so the hash is the same however many threads there are.
+ * The mixing is the round and finish of xxHash64, which is plenty to catch a
+ * single flipped bit but is not meant to stand up to anyone trying to make
+ * two states hash the same.
+ * @author rowan
+ */
+public final class StateHash {
+    private static final int CHUNK = 1 << 12;
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+
+    private StateHash() {
+    }
+
+    /**
+     * Hashes the particles in a store
+     * @param s The particles
+     * @return The hash
+     */
+    public static long of(ParticleStore s) {
+        int n = s.size();
+        int chunks = (n + CHUNK - 1) / CHUNK;
+        long[] part = new long[chunks];
+        IntStream.range(0, chunks).parallel().forEach((c) -> {
+            part[c] = chunk(s, c * CHUNK, Math.min(n, (c + 1) * CHUNK));
+        });
+        long h = round(PRIME2, n);
+        for (int c = 0; c < chunks; c++) {
+            h = round(h, part[c]);
+        }
+        return finish(h);
+    }
+
+    private static long chunk(ParticleStore s, int from, int to) {
+        long h = from;
+        for (int i = from; i < to; i++) {
+            h = round(h, Double.doubleToLongBits(s.x[i]));
+            h = round(h, Double.doubleToLongBits(s.y[i]));
+            h = round(h, Double.doubleToLongBits(s.vx[i]));
+            h = round(h, Double.doubleToLongBits(s.vy[i]));
+            h = round(h, Double.doubleToLongBits(s.dx[i]));
+            h = round(h, Double.doubleToLongBits(s.dy[i]));
+            h = round(h, (long) s.mass[i] << 16 | (s.charge[i] & 0xFFFF));
+        }
+        return h;
+    }
+
+    private static long round(long h, long v) {
+        return Long.rotateLeft(h + v * PRIME2, 31) * PRIME1;
+    }
+
+    private static long finish(long h) {
+        h ^= h >>> 33;
+        h *= PRIME2;
+        h ^= h >>> 29;
+        h *= 0x165667B19E3779F9L;
+        h ^= h >>> 32;
+        return h;
+    }
+}
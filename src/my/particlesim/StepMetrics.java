@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2014 Rowan Phipps
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package my.particlesim;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Keeps track of where the time goes in a running simulation.
+ *
+ * The Simulation times the force pass, the collision pass and the move of
+ * every step it takes, the SimulationThread counts the ticks it was late for
+ * or had to drop, and MyCanvas times each frame it draws.  Each phase goes into
+ * a LatencyHistogram, so recording is a few atomic adds and any thread can
+ * read the numbers at any time.  Nothing is timed unless a StepMetrics has
+ * been handed to the simulation.
+ *
+ * The numbers can be read directly, shown over the canvas, or published as
+ * an MXBean with register.
+ * @author rowan
+ */
+public class StepMetrics implements StepMetricsMXBean {
+    private static final long RATE_WINDOW = 1_000_000_000L;
+    private final LatencyHistogram step = new LatencyHistogram();
+    private final LatencyHistogram forces = new LatencyHistogram();
+    private final LatencyHistogram collisions = new LatencyHistogram();
+    private final LatencyHistogram move = new LatencyHistogram();
+    private final LatencyHistogram render = new LatencyHistogram();
+    private final AtomicLong steps = new AtomicLong();
+    private final AtomicLong forceTargets = new AtomicLong();  // particles, not pairs
+    private final AtomicLong candidatePairs = new AtomicLong();
+    private final AtomicLong contacts = new AtomicLong();
+    private final AtomicLong droppedTicks = new AtomicLong();
+    private final AtomicLong lateTicks = new AtomicLong();
+    private final AtomicLong lateFrames = new AtomicLong();
+    private volatile int particles = 0;
+    private volatile double stepsPerSecond = 0;
+    private long windowStart = 0;   // only touched by the stepping thread
+    private long windowSteps = 0;
+    private ObjectName registered = null;
+
+    /**
+     * Records a finished step
+     * @param nanos How long the whole step took
+     * @param n The number of particles after the step
+     */
+    void stepDone(long nanos, int n) {
+        step.record(nanos);
+        steps.incrementAndGet();
+        particles = n;
+        long now = System.nanoTime();
+        windowSteps++;
+        if (windowStart == 0) {
+            windowStart = now;
+            windowSteps = 0;
+        }
+        else if (now - windowStart >= RATE_WINDOW) {
+            stepsPerSecond = windowSteps * 1e9 / (now - windowStart);
+            windowStart = now;
+            windowSteps = 0;
+        }
+    }
+
+    /**
+     * Records a force pass
+     * @param nanos How long it took
+     * @param targets The number of particles forces were worked out for
+     */
+    void forcesDone(long nanos, int targets) {
+        forces.record(nanos);
+        forceTargets.addAndGet(targets);
+    }
+
+    /**
+     * Records a collision pass
+     * @param nanos How long it took
+     * @param pairs The number of pairs the broadphase found
+     * @param touching The number of those that were touching
+     */
+    void collisionsDone(long nanos, long pairs, long touching) {
+        collisions.record(nanos);
+        candidatePairs.addAndGet(pairs);
+        contacts.addAndGet(touching);
+    }
+
+    /**
+     * Records moving the particles
+     * @param nanos How long it took
+     */
+    void moveDone(long nanos) {
+        move.record(nanos);
+    }
+
+    /**
+     * Records drawing a frame
+     * @param nanos How long it took
+     * @param late True if the frame started later than it should have
+     */
+    void frameDone(long nanos, boolean late) {
+        render.record(nanos);
+        if (late) {
+            lateFrames.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records that the physics thread woke up too late to take its steps on
+     * time, and how many steps it had to drop to catch up
+     * @param dropped The number of steps dropped
+     */
+    void tickLate(long dropped) {
+        lateTicks.incrementAndGet();
+        droppedTicks.addAndGet(dropped);
+    }
+
+    @Override
+    public long getSteps() {
+        return steps.get();
+    }
+
+    @Override
+    public double getStepsPerSecond() {
+        return stepsPerSecond;
+    }
+
+    @Override
+    public int getParticles() {
+        return particles;
+    }
+
+    @Override
+    public PhaseStats getStep() {
+        return PhaseStats.of(step);
+    }
+
+    @Override
+    public PhaseStats getForces() {
+        return PhaseStats.of(forces);
+    }
+
+    @Override
+    public PhaseStats getCollisions() {
+        return PhaseStats.of(collisions);
+    }
+
+    @Override
+    public PhaseStats getMove() {
+        return PhaseStats.of(move);
+    }
+
+    @Override
+    public PhaseStats getRender() {
+        return PhaseStats.of(render);
+    }
+
+    @Override
+    public long getForceTargets() {
+        return forceTargets.get();
+    }
+
+    @Override
+    public long getCandidatePairs() {
+        return candidatePairs.get();
+    }
+
+    @Override
+    public long getContacts() {
+        return contacts.get();
+    }
+
+    @Override
+    public long getDroppedTicks() {
+        return droppedTicks.get();
+    }
+
+    @Override
+    public long getLateTicks() {
+        return lateTicks.get();
+    }
+
+    @Override
+    public long getLateFrames() {
+        return lateFrames.get();
+    }
+
+    @Override
+    public void reset() {
+        step.reset();
+        forces.reset();
+        collisions.reset();
+        move.reset();
+        render.reset();
+        steps.set(0);
+        forceTargets.set(0);
+        candidatePairs.set(0);
+        contacts.set(0);
+        droppedTicks.set(0);
+        lateTicks.set(0);
+        lateFrames.set(0);
+    }
+
+    /**
+     * Publishes these metrics on the platform MBean server as
+     * my.particlesim:type=StepMetrics,name=the given name
+     * @param name The name to publish under
+     * @throws IllegalStateException If they cannot be registered, for
+     * example because the name is taken
+     */
+    public synchronized void register(String name) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName on = new ObjectName("my.particlesim:type=StepMetrics,name=" + ObjectName.quote(name));
+            server.registerMBean(this, on);
+            registered = on;
+        } catch (JMException ex) {
+            throw new IllegalStateException("could not register metrics as " + name, ex);
+        }
+    }
+
+    /**
+     * Removes these metrics from the MBean server if they were registered
+     */
+    public synchronized void unregister() {
+        if (registered != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(registered);
+            } catch (JMException ex) {
+                // already gone
+            }
+            registered = null;
+        }
+    }
+
+    /**
+     * Returns a few lines describing the metrics, for the overlay and for
+     * printing at the end of a run
+     * @return The lines
+     */
+    public String[] describe() {
+        return new String[] {
+            String.format("particles  %d", particles),
+            String.format("steps/sec  %.1f", stepsPerSecond),
+            "step       " + this.getStep(),
+            "forces     " + this.getForces(),
+            "collisions " + this.getCollisions(),
+            "move       " + this.getMove(),
+            "render     " + this.getRender(),
+            String.format("pairs      %d candidates, %d touching, forces on %d particles",
+                    candidatePairs.get(), contacts.get(), forceTargets.get()),
+            String.format("ticks      %d late, %d steps dropped, %d late frames",
+                    lateTicks.get(), droppedTicks.get(), lateFrames.get()),
+        };
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2014 Rowan Phipps
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package my.particlesim;
+
+/**
+ * The view of a StepMetrics that is published through JMX, so a running
+ * simulation can be watched from jconsole or any other JMX client
+ * @author rowan
+ */
+public interface StepMetricsMXBean {
+
+    long getSteps();
+
+    double getStepsPerSecond();
+
+    int getParticles();
+
+    PhaseStats getStep();
+
+    PhaseStats getForces();
+
+    PhaseStats getCollisions();
+
+    PhaseStats getMove();
+
+    PhaseStats getRender();
+
+    /**
+     * Returns how many particles have had their forces worked out.  That is
+     * a count of particles, not of the pairs the solver went through.
+     * @return The number of particles
+     */
+    long getForceTargets();
+
+    long getCandidatePairs();
+
+    long getContacts();
+
+    long getDroppedTicks();
+
+    long getLateTicks();
+
+    long getLateFrames();
+
+    /**
+     * Forgets everything recorded so far
+     */
+    void reset();
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2014 Rowan Phipps
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package my.particlesim;
+
+import java.util.Arrays;
+
+/**
+ * A sweep and prune broadphase along the x axis.
+ * The particles are kept sorted by their left edge.  Walking along that order
+ * each particle only has to be checked against the ones after it whose left
+ * edge is before its right edge, so big and small particles mixed together
+ * cost no more than particles of one size, unlike a grid whose cells have to
+ * fit the biggest particle.
+ *
+ * The order is kept from one step to the next.  Particles only move a little
+ * each step so it is nearly sorted already and an insertion sort puts it
+ * right in close to linear time.  If the particles have been shuffled too
+ * much for that, or the number of them has changed, it is sorted from
+ * scratch instead.
+ * @author rowan
+ */
+public class SweepAndPruneBroadphase implements Broadphase {
+    private int[] order = new int[0];   // particle indexes sorted by left edge
+    private int sorted = 0;             // number of particles in order
+    private double[] left = new double[0];
+    private int[] tmp = new int[0];
+    private int[] pairI = new int[0];
+    private int[] pairJ = new int[0];
+    private int[] byFirst = new int[0];
+    private int[] firstStart = new int[0];
+
+    @Override
+    public void findPairs(ParticleStore particles, PairConsumer pairs) {
+        int n = particles.size();
+        if (n < 2) {
+            return;
+        }
+        if (left.length < n) {
+            int cap = Math.max(n, left.length * 2);
+            left = new double[cap];
+            order = Arrays.copyOf(order, cap);
+            tmp = new int[cap];
+            firstStart = new int[cap + 1];
+        }
+        for (int i = 0; i < n; i++) {
+            left[i] = particles.x[i] - particles.size[i] / 2.0;
+        }
+        this.sort(n);
+
+        // sweep, collecting the pairs so they can be handed out in order of
+        // their first index
+        int count = 0;
+        for (int a = 0; a < n; a++) {
+            int i = order[a];
+            double right = particles.x[i] + particles.size[i] / 2.0;
+            for (int b = a + 1; b < n && left[order[b]] <= right; b++) {
+                int j = order[b];
+                double reach = (particles.size[i] + particles.size[j]) / 2.0;
+                if (Math.abs(particles.y[i] - particles.y[j]) <= reach) {
+                    if (count == pairI.length) {
+                        pairI = Arrays.copyOf(pairI, Math.max(16, count * 2));
+                        pairJ = Arrays.copyOf(pairJ, pairI.length);
+                    }
+                    pairI[count] = Math.min(i, j);
+                    pairJ[count] = Math.max(i, j);
+                    count++;
+                }
+            }
+        }
+
+        Arrays.fill(firstStart, 0, n + 1, 0);
+        for (int p = 0; p < count; p++) {
+            firstStart[pairI[p] + 1]++;
+        }
+        for (int i = 0; i < n; i++) {
+            firstStart[i + 1] += firstStart[i];
+        }
+        if (byFirst.length < count) {
+            byFirst = new int[pairI.length];
+        }
+        for (int p = 0; p < count; p++) {
+            byFirst[firstStart[pairI[p]]++] = p;
+        }
+        for (int m = 0; m < count; m++) {
+            int p = byFirst[m];
+            pairs.accept(pairI[p], pairJ[p]);
+        }
+    }
+
+    /**
+     * Brings the order up to date with the left edges
+     * @param n The number of particles
+     */
+    private void sort(int n) {
+        if (sorted != n) {
+            for (int i = 0; i < n; i++) {
+                order[i] = i;
+            }
+            ContinuousCollider.sortByKey(order, left, n, tmp);
+            sorted = n;
+            return;
+        }
+
+        // give up on the insertion sort once it has done a few times more
+        // work than a full sort would
+        long limit = 8L * n + 64;
+        long moves = 0;
+        for (int a = 1; a < n; a++) {
+            int i = order[a];
+            double key = left[i];
+            int b = a - 1;
+            while (b >= 0 && left[order[b]] > key) {
+                order[b + 1] = order[b];
+                b--;
+            }
+            order[b + 1] = i;
+            moves += a - 1 - b;
+            if (moves > limit) {
+                ContinuousCollider.sortByKey(order, left, n, tmp);
+                return;
+            }
+        }
+    }
+}
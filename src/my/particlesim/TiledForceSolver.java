@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2014 Rowan Phipps
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package my.particlesim;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Calculates the exact forces with a fork/join pool, working out each pair
+ * once and applying the force to both particles straight into the output.
+ *
+ * The particles are split into an even number of blocks of the same size,
+ * and the pair matrix into tiles of one block against another.  The tiles
+ * are run in rounds taken from a round robin tournament: in each round every
+ * block is in exactly one tile, so the tiles of a round can all run at once
+ * without two of them ever writing to the same particle, and each of them is
+ * the same amount of work.  A last round works out the pairs inside each
+ * block.  The rounds always run in the same order so the result does not
+ * depend on the number of threads.
+ *
+ * The time each worker spends on tiles is recorded so that how evenly the
+ * work was spread can be checked with getWorkerNanos.
+ * @author rowan
+ */
+public class TiledForceSolver implements ForceSolver {
+    private static final int DEFAULT_BLOCKS = 32;
+    private final ForkJoinPool pool;
+    private final int blocks;
+    private int[] blockStart;
+    private long[] tileNanos = new long[0];
+    private String[] tileWorker = new String[0];
+    private long wallNanos = 0;
+
+    /**
+     * Creates a solver that uses 32 blocks and runs in whatever pool it is
+     * called from, or the common pool when it is not called from one, the
+     * same as a parallel stream would
+     */
+    public TiledForceSolver() {
+        this(DEFAULT_BLOCKS, null);
+    }
+
+    /**
+     * Creates a solver
+     * @param blocks The number of blocks to split the particles into, rounded
+     * up to an even number.  Each round has half this many tiles, so it
+     * should be a few times the number of threads.
+     * @param pool The pool to run the tiles in, or null for the pool it is
+     * called from
+     */
+    public TiledForceSolver(int blocks, ForkJoinPool pool) {
+        if (blocks < 1) {
+            throw new IllegalArgumentException("blocks must be positive: " + blocks);
+        }
+        this.blocks = blocks + (blocks & 1);
+        this.pool = pool;
+        this.blockStart = new int[this.blocks + 1];
+    }
+
+    @Override
+    public boolean isDeterministic() {
+        return true;
+    }
+
+    @Override
+    public void computeForces(ParticleStore particles, int width, int height,
+            double[] fx, double[] fy,
+            boolean gravity, boolean electro, boolean collision) {
+        long start = System.nanoTime();
+        int n = particles.size();
+        for (int b = 0; b <= blocks; b++) {
+            blockStart[b] = (int) ((long) n * b / blocks);
+        }
+        int tiles = blocks * (blocks + 1) / 2;
+        if (tileNanos.length != tiles) {
+            tileNanos = new long[tiles];
+            tileWorker = new String[tiles];
+        }
+        Arrays.fill(fx, 0, n, 0);
+        Arrays.fill(fy, 0, n, 0);
+
+        // circle method: block blocks - 1 stays put and the others rotate
+        int rounds = blocks - 1;
+        int half = blocks / 2;
+        for (int r = 0; r < rounds; r++) {
+            List<Tile> round = new ArrayList<>(half);
+            for (int k = 0; k < half; k++) {
+                int a = k == 0 ? blocks - 1 : (r + k) % rounds;
+                int b = (r + rounds - k) % rounds;
+                round.add(new Tile(r * half + k, a, b, particles, fx, fy, gravity, electro));
+            }
+            this.run(new Round(round));
+        }
+        List<Tile> diagonal = new ArrayList<>(blocks);
+        for (int b = 0; b < blocks; b++) {
+            diagonal.add(new Tile(rounds * half + b, b, b, particles, fx, fy, gravity, electro));
+        }
+        this.run(new Round(diagonal));
+        wallNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Runs a round in the pool of the solver, or if it has none then in the
+     * pool of the calling thread.  invoke forks into the pool of the calling
+     * worker, and into the common pool from any other thread.
+     */
+    private void run(Round round) {
+        if (pool != null) {
+            pool.invoke(round);
+        } else {
+            round.invoke();
+        }
+    }
+
+    /**
+     * Returns how long each worker spent on tiles in the last call
+     * @return Nanoseconds of work for each worker thread, by thread name
+     */
+    public Map<String, Long> getWorkerNanos() {
+        Map<String, Long> times = new TreeMap<>();
+        for (int t = 0; t < tileNanos.length; t++) {
+            if (tileWorker[t] != null) {
+                times.merge(tileWorker[t], tileNanos[t], Long::sum);
+            }
+        }
+        return Collections.unmodifiableMap(times);
+    }
+
+    /**
+     * Returns how long the last call took from start to finish
+     * @return The time in nanoseconds
+     */
+    public long getWallNanos() {
+        return this.wallNanos;
+    }
+
+    /**
+     * Runs the tiles of one round at the same time
+     */
+    @SuppressWarnings("serial")
+    private static class Round extends RecursiveAction {
+        private final List<Tile> tiles;
+
+        Round(List<Tile> tiles) {
+            this.tiles = tiles;
+        }
+
+        @Override
+        protected void compute() {
+            invokeAll(tiles);
+        }
+    }
+
+    /**
+     * The pairs between two blocks, or inside one block when they are the
+     * same
+     */
+    @SuppressWarnings("serial")
+    private class Tile extends RecursiveAction {
+        private final int id;
+        private final int a;
+        private final int b;
+        private final ParticleStore s;
+        private final double[] fx;
+        private final double[] fy;
+        private final double gm;
+        private final double kq;
+
+        Tile(int id, int a, int b, ParticleStore s, double[] fx, double[] fy,
+                boolean gravity, boolean electro) {
+            this.id = id;
+            this.a = a;
+            this.b = b;
+            this.s = s;
+            this.fx = fx;
+            this.fy = fy;
+            this.gm = gravity ? -Physics.g : 0;
+            this.kq = electro ? Physics.k : 0;
+        }
+
+        @Override
+        protected void compute() {
+            long start = System.nanoTime();
+            int iFrom = blockStart[a];
+            int iTo = blockStart[a + 1];
+            for (int i = iFrom; i < iTo; i++) {
+                this.row(i, a == b ? i + 1 : blockStart[b], blockStart[b + 1]);
+            }
+            tileNanos[id] = System.nanoTime() - start;
+            tileWorker[id] = Thread.currentThread().getName();
+        }
+
+        private void row(int i, int from, int to) {
+            double x = s.x[i];
+            double y = s.y[i];
+            double m = s.mass[i];
+            double q = s.charge[i];
+            int size = s.size[i];
+            double sumX = 0;
+            double sumY = 0;
+            for (int j = from; j < to; j++) {
+                double dx = x - s.x[j];
+                double dy = y - s.y[j];
+                double d2 = dx * dx + dy * dy;
+                if (d2 == 0 || Math.sqrt(d2) <= (size + s.size[j]) / 2) {
+                    continue;
+                }
+                double coef = (gm * m * s.mass[j] + kq * q * s.charge[j]) / d2;
+                double px = dx * coef;
+                double py = dy * coef;
+                sumX += px;
+                sumY += py;
+                fx[j] -= px;
+                fy[j] -= py;
+            }
+            fx[i] += sumX;
+            fy[i] += sumY;
+        }
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2014 Rowan Phipps
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package my.particlesim;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Plays back a file written by a TrajectoryRecorder.
+ *
+ * Frames are read in order with next.  seek jumps to the keyframe at or
+ * before a step and reads forward from there.  If the recording was never
+ * closed there is no index, so the file is scanned for keyframes when it is
+ * opened and a frame cut short at the end is ignored.
+ * @author rowan
+ */
+public class TrajectoryReader implements Closeable {
+    private final FileChannel ch;
+    private final double posScale;
+    private final double velScale;
+    private long[] keySteps = new long[16];
+    private long[] keyOffsets = new long[16];
+    private int keys = 0;
+    private long dataEnd;
+    private DataInputStream in;
+    private long pos;
+    private boolean haveKey = false;
+    private long step = -1;
+    private long[][] prev = new long[6][0];
+    private byte[] data = new byte[1024];
+    private int at;
+    private int length;
+
+    /**
+     * Opens a recording
+     * @param file The file to read
+     * @throws IOException If the file cannot be read or is not a recording
+     */
+    public TrajectoryReader(Path file) throws IOException {
+        ch = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(TrajectoryRecorder.HEADER_SIZE);
+            readFully(ch, header, 0);
+            if (header.getInt(0) != TrajectoryRecorder.MAGIC) {
+                throw new IOException(file + " is not a recording");
+            }
+            int version = header.getInt(4);
+            if (version != TrajectoryRecorder.VERSION) {
+                throw new IOException(file + " is version " + version
+                        + " but only version " + TrajectoryRecorder.VERSION + " is supported");
+            }
+            posScale = header.getDouble(8);
+            velScale = header.getDouble(16);
+            if (!this.readIndex()) {
+                this.scan();
+            }
+            this.seekOffset(TrajectoryRecorder.HEADER_SIZE);
+        } catch (IOException ex) {
+            ch.close();
+            throw ex;
+        }
+    }
+
+    private static void readFully(FileChannel ch, ByteBuffer b, long at) throws IOException {
+        while (b.hasRemaining()) {
+            if (ch.read(b, at + b.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    /**
+     * Reads the keyframe index from the end of the file
+     * @return False if there is no index
+     */
+    private boolean readIndex() throws IOException {
+        long size = ch.size();
+        if (size < TrajectoryRecorder.HEADER_SIZE + 16) {
+            return false;
+        }
+        ByteBuffer tail = ByteBuffer.allocate(16);
+        readFully(ch, tail, size - 16);
+        if (tail.getInt(12) != TrajectoryRecorder.INDEX_MAGIC) {
+            return false;
+        }
+        int count = tail.getInt(0);
+        long start = tail.getLong(4);
+        if (count < 0 || start + 16L * count + 16 != size) {
+            return false;
+        }
+        ByteBuffer index = ByteBuffer.allocate(16 * count);
+        readFully(ch, index, start);
+        keySteps = new long[Math.max(count, 1)];
+        keyOffsets = new long[Math.max(count, 1)];
+        for (int k = 0; k < count; k++) {
+            keySteps[k] = index.getLong(16 * k);
+            keyOffsets[k] = index.getLong(16 * k + 8);
+        }
+        keys = count;
+        dataEnd = start;
+        return true;
+    }
+
+    /**
+     * Finds the keyframes by walking the frame headers, for files that were
+     * not closed properly
+     */
+    private void scan() throws IOException {
+        long size = ch.size();
+        long at = TrajectoryRecorder.HEADER_SIZE;
+        ByteBuffer header = ByteBuffer.allocate(TrajectoryRecorder.FRAME_HEADER_SIZE);
+        while (at + TrajectoryRecorder.FRAME_HEADER_SIZE <= size) {
+            header.clear();
+            readFully(ch, header, at);
+            long next = at + TrajectoryRecorder.FRAME_HEADER_SIZE + header.getInt(13);
+            if (next > size) {
+                break;
+            }
+            if (header.get(0) == TrajectoryRecorder.KEYFRAME) {
+                this.addKey(header.getLong(1), at);
+            }
+            at = next;
+        }
+        dataEnd = at;
+    }
+
+    private void addKey(long step, long offset) {
+        if (keys == keySteps.length) {
+            keySteps = Arrays.copyOf(keySteps, keys * 2);
+            keyOffsets = Arrays.copyOf(keyOffsets, keys * 2);
+        }
+        keySteps[keys] = step;
+        keyOffsets[keys] = offset;
+        keys++;
+    }
+
+    private void seekOffset(long offset) throws IOException {
+        ch.position(offset);
+        in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(ch), 1 << 16));
+        pos = offset;
+        haveKey = false;
+    }
+
+    /**
+     * Returns the number of keyframes
+     * @return The number of keyframes
+     */
+    public int getKeyframeCount() {
+        return keys;
+    }
+
+    /**
+     * Returns the step a keyframe was recorded at
+     * @param k The index of the keyframe
+     * @return The step
+     */
+    public long getKeyframeStep(int k) {
+        if (k < 0 || k >= keys) {
+            throw new IndexOutOfBoundsException("no keyframe " + k);
+        }
+        return keySteps[k];
+    }
+
+    /**
+     * Returns the step of the last frame read
+     * @return The step, or -1 before the first frame
+     */
+    public long getStep() {
+        return step;
+    }
+
+    /**
+     * Moves to the first recorded frame at or after a step and reads it
+     * @param target The step to go to
+     * @param into The store to put the particles in
+     * @return False if no frame that late was recorded
+     * @throws IOException If the file cannot be read
+     */
+    public boolean seek(long target, ParticleStore into) throws IOException {
+        int k = 0;
+        while (k + 1 < keys && keySteps[k + 1] <= target) {
+            k++;
+        }
+        this.seekOffset(keys == 0 ? dataEnd : keyOffsets[k]);
+        while (this.next(into)) {
+            if (step >= target) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads the next frame
+     * @param into The store to put the particles in, anything in it is removed
+     * @return False at the end of the recording
+     * @throws IOException If the file cannot be read or is damaged
+     */
+    public boolean next(ParticleStore into) throws IOException {
+        if (pos + TrajectoryRecorder.FRAME_HEADER_SIZE > dataEnd) {
+            return false;
+        }
+        byte type = in.readByte();
+        long frameStep = in.readLong();
+        int n = in.readInt();
+        length = in.readInt();
+        if (data.length < length) {
+            data = new byte[Math.max(length, data.length * 2)];
+        }
+        in.readFully(data, 0, length);
+        pos += TrajectoryRecorder.FRAME_HEADER_SIZE + length;
+
+        boolean key = type == TrajectoryRecorder.KEYFRAME;
+        if (!key && !haveKey) {
+            throw new IOException("delta frame at step " + frameStep + " without a keyframe before it");
+        }
+        if (prev[0].length < n) {
+            for (int c = 0; c < prev.length; c++) {
+                prev[c] = new long[Math.max(n, prev[c].length + (prev[c].length >> 1))];
+            }
+        }
+        at = 0;
+        for (int c = 0; c < prev.length; c++) {
+            long[] p = prev[c];
+            for (int i = 0; i < n; i++) {
+                long v = this.getVarLong();
+                p[i] = key ? v : p[i] + v;
+            }
+        }
+        if (at != length) {
+            throw new IOException("frame at step " + frameStep + " is damaged");
+        }
+        haveKey = true;
+        step = frameStep;
+
+        into.removeAll();
+        into.ensureCapacity(n);
+        for (int i = 0; i < n; i++) {
+            into.add((int) prev[4][i], (int) prev[5][i],
+                    prev[0][i] / posScale, prev[1][i] / posScale,
+                    prev[2][i] / velScale, prev[3][i] / velScale);
+        }
+        return true;
+    }
+
+    private long getVarLong() throws IOException {
+        long z = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (at >= length) {
+                throw new IOException("frame data ends in the middle of a number");
+            }
+            byte b = data[at++];
+            z |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return (z >>> 1) ^ -(z & 1);
+            }
+        }
+        throw new IOException("number too long");
+    }
+
+    @Override
+    public void close() throws IOException {
+        ch.close();
+    }
+}
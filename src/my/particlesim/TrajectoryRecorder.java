@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2014 Rowan Phipps
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package my.particlesim;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Streams the state of a simulation to a file after every step so a run can
+ * be replayed or looked at later with a TrajectoryReader.
+ *
+ * The physics thread only copies the particles into a free frame and queues
+ * it.  Encoding and writing happen on a thread of their own.  There is a fixed
+ * number of frames, and when they are all waiting to be written the new frame
+ * is dropped instead of making the physics wait, so a slow disk costs frames
+ * and never steps.  The next frame written then simply covers a bigger jump.
+ *
+ * Positions and velocities are rounded to fixed point and every particle is
+ * stored as the difference from where it was in the last written frame, as
+ * zigzag varints, so a particle that hardly moved takes a few bytes.  Every
+ * so often, and whenever the number of particles changes, a keyframe holding
+ * the whole state is written instead so a reader can start from there.
+ *
+ * The file is
+ * <pre>
+ * int     magic, "PSTR"
+ * int     version
+ * double  position scale, fixed point units per pixel
+ * double  velocity scale
+ * frames, each
+ *   byte  0 for a keyframe, 1 for a delta frame
+ *   long  step
+ *   int   number of particles
+ *   int   length of the data
+ *   data  x, y, vx, vy, mass and charge for every particle, one after the other
+ * index, written by close
+ *   long  step and long file offset of every keyframe
+ *   int   number of keyframes
+ *   long  file offset of the index
+ *   int   magic, "PSTI"
+ * </pre>
+ * all big endian.  A file that was never closed has no index but can still be
+ * read.
+ * @author rowan
+ */
+public class TrajectoryRecorder implements Closeable {
+    static final int MAGIC = 0x50535452;
+    static final int INDEX_MAGIC = 0x50535449;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 4 + 4 + 8 + 8;
+    static final int FRAME_HEADER_SIZE = 1 + 8 + 4 + 4;
+    static final byte KEYFRAME = 0;
+    static final byte DELTA = 1;
+
+    private final DataOutputStream out;
+    private final double posScale;
+    private final double velScale;
+    private final int keyframeEvery;
+    private final ArrayBlockingQueue<Frame> free;
+    private final ArrayBlockingQueue<Frame> full;
+    private final Frame end = new Frame();
+    private final Thread writer;
+    private volatile int recordEvery = 1;
+    private volatile boolean closed = false;
+    private volatile IOException failure = null;
+    private volatile long recorded = 0;
+    private volatile long dropped = 0;
+
+    // only touched by the writer thread
+    private long offset = HEADER_SIZE;
+    private long[] keySteps = new long[16];
+    private long[] keyOffsets = new long[16];
+    private int keys = 0;
+    private int sinceKey = 0;
+    private int prevCount = -1;
+    private long[][] prev = new long[6][0];
+    private byte[] data = new byte[1024];
+    private int length = 0;
+
+    /**
+     * Starts recording to a file with a keyframe every 100 frames, positions
+     * to 1/1024 of a pixel and velocities to 1/65536
+     * @param file The file to record to
+     * @throws IOException If the file cannot be created
+     */
+    public TrajectoryRecorder(Path file) throws IOException {
+        this(file, 100, 1024, 65536, 8);
+    }
+
+    /**
+     * Starts recording to a file
+     * @param file The file to record to
+     * @param keyframeEvery The most frames written between two keyframes
+     * @param posScale Positions are rounded to 1 / posScale of a pixel
+     * @param velScale Velocities are rounded to 1 / velScale
+     * @param queue The number of frames that can wait to be written before
+     * frames are dropped
+     * @throws IOException If the file cannot be created
+     */
+    public TrajectoryRecorder(Path file, int keyframeEvery, double posScale, double velScale,
+            int queue) throws IOException {
+        if (keyframeEvery < 1 || queue < 1 || !(posScale > 0) || !(velScale > 0)) {
+            throw new IllegalArgumentException("bad recorder settings");
+        }
+        this.keyframeEvery = keyframeEvery;
+        this.posScale = posScale;
+        this.velScale = velScale;
+        this.free = new ArrayBlockingQueue<>(queue);
+        this.full = new ArrayBlockingQueue<>(queue + 1);
+        for (int i = 0; i < queue; i++) {
+            free.add(new Frame());
+        }
+
+        out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeDouble(posScale);
+        out.writeDouble(velScale);
+
+        writer = new Thread(this::write, "recorder");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues the current state of the particles to be written.  This is
+     * called by the Simulation after each step and never waits: if no frame
+     * is free the state is dropped.
+     * @param s The particles
+     * @param step The step the particles are at
+     */
+    public void record(ParticleStore s, long step) {
+        if (closed || failure != null || step % recordEvery != 0) {
+            return;
+        }
+        Frame f = free.poll();
+        if (f == null) {
+            dropped++;
+            return;
+        }
+        f.fill(s, step);
+        full.add(f);
+        recorded++;
+    }
+
+    /**
+     * Only records every nth step, to make smaller files of long runs
+     * @param n The number of steps between recorded frames
+     */
+    public void setRecordEvery(int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("n must be positive: " + n);
+        }
+        this.recordEvery = n;
+    }
+
+    /**
+     * Returns the number of frames that were queued to be written
+     * @return The number of frames
+     */
+    public long getRecordedFrames() {
+        return recorded;
+    }
+
+    /**
+     * Returns the number of frames that were dropped because the writer
+     * could not keep up
+     * @return The number of dropped frames
+     */
+    public long getDroppedFrames() {
+        return dropped;
+    }
+
+    /**
+     * Writes the frames that are still queued and the keyframe index, then
+     * closes the file.  Frames recorded after this are ignored.
+     * @throws IOException If anything could not be written
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        full.add(end);
+        boolean interrupted = false;
+        while (writer.isAlive()) {
+            try {
+                writer.join();
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * The writer thread
+     */
+    private void write() {
+        try {
+            try {
+                Frame f;
+                while ((f = full.take()) != end) {
+                    if (failure == null) {
+                        this.writeFrame(f);
+                        if (full.isEmpty()) {
+                            out.flush();
+                        }
+                    }
+                    free.add(f);
+                }
+                if (failure == null) {
+                    this.writeIndex();
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException ex) {
+            if (failure == null) {
+                failure = ex;
+            }
+        } catch (InterruptedException ex) {
+            failure = new IOException("recorder interrupted", ex);
+        }
+    }
+
+    private void writeFrame(Frame f) throws IOException {
+        int n = f.count;
+        boolean key = n != prevCount || sinceKey >= keyframeEvery;
+        if (prev[0].length < n) {
+            for (int c = 0; c < prev.length; c++) {
+                prev[c] = new long[Math.max(n, prev[c].length + (prev[c].length >> 1))];
+            }
+        }
+        length = 0;
+        this.encode(f.x, posScale, prev[0], n, key);
+        this.encode(f.y, posScale, prev[1], n, key);
+        this.encode(f.vx, velScale, prev[2], n, key);
+        this.encode(f.vy, velScale, prev[3], n, key);
+        this.encode(f.mass, prev[4], n, key);
+        this.encode(f.charge, prev[5], n, key);
+
+        if (key) {
+            if (keys == keySteps.length) {
+                keySteps = Arrays.copyOf(keySteps, keys * 2);
+                keyOffsets = Arrays.copyOf(keyOffsets, keys * 2);
+            }
+            keySteps[keys] = f.step;
+            keyOffsets[keys] = offset;
+            keys++;
+            sinceKey = 0;
+        }
+        sinceKey++;
+        prevCount = n;
+
+        out.writeByte(key ? KEYFRAME : DELTA);
+        out.writeLong(f.step);
+        out.writeInt(n);
+        out.writeInt(length);
+        out.write(data, 0, length);
+        offset += FRAME_HEADER_SIZE + length;
+    }
+
+    private void writeIndex() throws IOException {
+        for (int k = 0; k < keys; k++) {
+            out.writeLong(keySteps[k]);
+            out.writeLong(keyOffsets[k]);
+        }
+        out.writeInt(keys);
+        out.writeLong(offset);
+        out.writeInt(INDEX_MAGIC);
+    }
+
+    private void encode(double[] v, double scale, long[] prev, int n, boolean key) {
+        for (int i = 0; i < n; i++) {
+            long q = Math.round(v[i] * scale);
+            this.putVarLong(key ? q : q - prev[i]);
+            prev[i] = q;
+        }
+    }
+
+    private void encode(short[] v, long[] prev, int n, boolean key) {
+        for (int i = 0; i < n; i++) {
+            long q = v[i];
+            this.putVarLong(key ? q : q - prev[i]);
+            prev[i] = q;
+        }
+    }
+
+    /**
+     * Appends a zigzag varint, so small numbers of either sign take few bytes
+     */
+    private void putVarLong(long v) {
+        if (data.length - length < 10) {
+            data = Arrays.copyOf(data, data.length * 2);
+        }
+        long z = (v << 1) ^ (v >> 63);
+        while ((z & ~0x7FL) != 0) {
+            data[length++] = (byte) ((z & 0x7F) | 0x80);
+            z >>>= 7;
+        }
+        data[length++] = (byte) z;
+    }
+
+    /**
+     * A copy of the particles waiting to be written
+     */
+    private static class Frame {
+        long step;
+        int count;
+        double[] x = new double[0];
+        double[] y = new double[0];
+        double[] vx = new double[0];
+        double[] vy = new double[0];
+        short[] mass = new short[0];
+        short[] charge = new short[0];
+
+        void fill(ParticleStore s, long step) {
+            this.step = step;
+            this.count = s.size();
+            if (x.length < count) {
+                int cap = Math.max(count, x.length + (x.length >> 1));
+                x = new double[cap];
+                y = new double[cap];
+                vx = new double[cap];
+                vy = new double[cap];
+                mass = new short[cap];
+                charge = new short[cap];
+            }
+            System.arraycopy(s.x, 0, x, 0, count);
+            System.arraycopy(s.y, 0, y, 0, count);
+            System.arraycopy(s.vx, 0, vx, 0, count);
+            System.arraycopy(s.vy, 0, vy, 0, count);
+            System.arraycopy(s.mass, 0, mass, 0, count);
+            System.arraycopy(s.charge, 0, charge, 0, count);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2014 Rowan Phipps
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package my.particlesim;
+
+/**
+ * Velocity Verlet.
+ * Each step is half a kick with the forces from the end of the last step, a
+ * full drift, and half a kick with the forces at the new positions.  It is
+ * second order and time reversible so energy wobbles around the right value
+ * instead of drifting away, which allows much bigger steps than Euler for the
+ * same accuracy.
+ *
+ * The forces at the end of a step are kept for the start of the next one so
+ * there is still only one force pass per step.  They are worked out again if
+ * the number of particles changes or reset is called.  Collisions are applied
+ * at the end of the step.
+ * @author rowan
+ */
+public class VelocityVerletIntegrator implements Integrator {
+    private double[] fx = new double[0];
+    private double[] fy = new double[0];
+    private int cached = -1;    // number of particles the forces are for
+
+    @Override
+    public void step(ParticleStore s, double T, int width, int height,
+            Forces forces, Drift drift, Runnable collisions) {
+        int n = s.size();
+        if (fx.length < n) {
+            fx = new double[Math.max(n, fx.length * 2)];
+            fy = new double[fx.length];
+            cached = -1;
+        }
+        if (cached != n) {
+            forces.compute(fx, fy);
+        }
+        double half = T / 2;
+        for (int i = 0; i < n; i++) {
+            Physics.applyForce(s, i, fx[i], fy[i], half);
+        }
+        drift.drift(T);
+        forces.compute(fx, fy);
+        for (int i = 0; i < n; i++) {
+            Physics.applyForce(s, i, fx[i], fy[i], half);
+        }
+        cached = n;
+        if (collisions != null) {
+            collisions.run();
+        }
+    }
+
+    @Override
+    public void reset() {
+        cached = -1;
+    }
+}